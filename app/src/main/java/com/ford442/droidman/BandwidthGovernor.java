@@ -0,0 +1,203 @@
+package com.ford442.droidman;
+
+import android.util.Log;
+
+/**
+ * Shares the network link between the stream that is playing and background downloads.
+ * While a song streams, its bitrate (plus headroom) is reserved and prefetch/bulk
+ * downloads draw from token buckets filled with what is left. The background rate
+ * starts from the measured link speed, grows while playback is smooth up to what the
+ * link leaves beside the stream, and is halved on every rebuffer. The backoff lasts
+ * for the rest of the song, across pauses. With nothing streaming, downloads run unthrottled.
+ */
+public class BandwidthGovernor {
+
+    private static final String TAG = "BandwidthGovernor";
+
+    public enum TransferClass { PLAYBACK, PREFETCH, BULK }
+
+    // Reserve this much more than the nominal bitrate for the playing stream
+    private static final double RESERVE_HEADROOM = 1.5;
+    // Bulk downloads only get part of the background budget, leaving room for prefetch
+    private static final double BULK_SHARE = 0.6;
+    private static final long MIN_BACKGROUND_BYTES_PER_SEC = 32 * 1024;
+    private static final long DEFAULT_BACKGROUND_BYTES_PER_SEC = 256 * 1024;
+    private static final long BACKGROUND_INCREASE_PER_SEC = 32 * 1024;
+    // Peak link estimate decays so it follows a link that got slower
+    private static final double LINK_DECAY_PER_SEC = 0.98;
+    private static final long UPDATE_INTERVAL_MS = 1000;
+
+    private final RateMeter[] meters = new RateMeter[TransferClass.values().length];
+    private final TokenBucket prefetchBucket = new TokenBucket();
+    private final TokenBucket bulkBucket = new TokenBucket();
+
+    private double linkBytesPerSec = 0;
+    private long reservedBytesPerSec = 0;
+    private double backgroundBytesPerSec = DEFAULT_BACKGROUND_BYTES_PER_SEC;
+    private int rebufferCount = 0;
+    private boolean songChanged = true;
+    private long lastUpdate = System.currentTimeMillis();
+
+    public BandwidthGovernor() {
+        for (int i = 0; i < meters.length; i++) meters[i] = new RateMeter();
+    }
+
+    /** Bitrate of the stream now playing from the network in bits per second, or 0 when playing from cache. */
+    public synchronized void setPlaybackBitrate(long bitsPerSec) {
+        long reserved = (long) (bitsPerSec / 8 * RESERVE_HEADROOM);
+        if (reserved > 0 && (reservedBytesPerSec == 0 || songChanged)) {
+            // A new song starts from whatever the link showed it can carry beyond the stream;
+            // resuming the same one keeps any backoff from its rebuffers
+            double available = linkBytesPerSec > 0 ? linkBytesPerSec - reserved : DEFAULT_BACKGROUND_BYTES_PER_SEC;
+            backgroundBytesPerSec = Math.max(MIN_BACKGROUND_BYTES_PER_SEC,
+                    songChanged ? available : Math.min(backgroundBytesPerSec, available));
+            songChanged = false;
+        }
+        reservedBytesPerSec = reserved;
+        applyRates();
+    }
+
+    /** Called when another song starts, so its reservation no longer inherits the last one's backoff. */
+    public synchronized void onSongChanged() {
+        songChanged = true;
+    }
+
+    public void recordBytes(TransferClass transferClass, long bytes) {
+        meters[transferClass.ordinal()].add(bytes);
+        maybeUpdate();
+    }
+
+    /** Blocks until a background transfer may move this many more bytes. */
+    public void acquire(TransferClass transferClass, int bytes) throws InterruptedException {
+        if (transferClass == TransferClass.PLAYBACK) return;
+        (transferClass == TransferClass.BULK ? bulkBucket : prefetchBucket).acquire(bytes);
+    }
+
+    public synchronized void onRebuffer() {
+        rebufferCount++;
+        if (reservedBytesPerSec > 0) {
+            backgroundBytesPerSec = Math.max(MIN_BACKGROUND_BYTES_PER_SEC, backgroundBytesPerSec / 2);
+            applyRates();
+        }
+        Log.i(TAG, "Rebuffer #" + rebufferCount + ", background limited to " + (long) backgroundBytesPerSec + " B/s");
+    }
+
+    public synchronized int getRebufferCount() {
+        return rebufferCount;
+    }
+
+    public long getThroughputBytesPerSec(TransferClass transferClass) {
+        return (long) meters[transferClass.ordinal()].get();
+    }
+
+    public synchronized long getLinkBytesPerSec() {
+        return (long) linkBytesPerSec;
+    }
+
+    public synchronized long getReservedBytesPerSec() {
+        return reservedBytesPerSec;
+    }
+
+    private synchronized void maybeUpdate() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastUpdate;
+        if (elapsed < UPDATE_INTERVAL_MS) return;
+        lastUpdate = now;
+
+        double total = 0;
+        for (RateMeter meter : meters) total += meter.get();
+        linkBytesPerSec = Math.max(total, linkBytesPerSec * Math.pow(LINK_DECAY_PER_SEC, elapsed / 1000.0));
+
+        if (reservedBytesPerSec > 0) {
+            backgroundBytesPerSec += BACKGROUND_INCREASE_PER_SEC * elapsed / 1000.0;
+            // Never grow past what the measured link leaves beside the stream
+            if (linkBytesPerSec > 0) {
+                backgroundBytesPerSec = Math.min(backgroundBytesPerSec,
+                        Math.max(MIN_BACKGROUND_BYTES_PER_SEC, linkBytesPerSec - reservedBytesPerSec));
+            }
+            applyRates();
+        }
+    }
+
+    private void applyRates() {
+        if (reservedBytesPerSec == 0) {
+            prefetchBucket.setRate(0);
+            bulkBucket.setRate(0);
+        } else {
+            prefetchBucket.setRate((long) backgroundBytesPerSec);
+            bulkBucket.setRate((long) (backgroundBytesPerSec * BULK_SHARE));
+        }
+    }
+
+    // Bytes per second over roughly the last second, smoothed
+    private static class RateMeter {
+        private static final double SMOOTHING = 0.5;
+        private long windowStart = System.currentTimeMillis();
+        private long windowBytes = 0;
+        private double rate = 0;
+
+        synchronized void add(long bytes) {
+            roll();
+            windowBytes += bytes;
+        }
+
+        synchronized double get() {
+            roll();
+            return rate;
+        }
+
+        private void roll() {
+            long now = System.currentTimeMillis();
+            long elapsed = now - windowStart;
+            if (elapsed < UPDATE_INTERVAL_MS) return;
+            double sample = windowBytes * 1000.0 / elapsed;
+            // After an idle gap the old rate says nothing about now
+            rate = elapsed > 5 * UPDATE_INTERVAL_MS ? sample : rate + SMOOTHING * (sample - rate);
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+
+    // Refills continuously at the configured rate; a rate of 0 means unlimited
+    private static class TokenBucket {
+        private static final double BURST_SECONDS = 0.25;
+        private long bytesPerSec = 0;
+        private double tokens = 0;
+        private long lastRefill = System.nanoTime();
+
+        synchronized void setRate(long bytesPerSec) {
+            refill();
+            this.bytesPerSec = bytesPerSec;
+            tokens = Math.min(tokens, capacity());
+        }
+
+        void acquire(int bytes) throws InterruptedException {
+            while (true) {
+                long waitMs;
+                synchronized (this) {
+                    if (bytesPerSec == 0) return;
+                    refill();
+                    if (tokens >= bytes || tokens >= capacity()) {
+                        tokens -= bytes;
+                        return;
+                    }
+                    waitMs = (long) Math.ceil((bytes - tokens) * 1000.0 / bytesPerSec);
+                }
+                // Re-checked after sleeping, in case the rate changed meanwhile
+                Thread.sleep(Math.max(1, Math.min(waitMs, 250)));
+            }
+        }
+
+        private double capacity() {
+            return Math.max(bytesPerSec * BURST_SECONDS, 8192);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (bytesPerSec > 0) {
+                tokens = Math.min(capacity(), tokens + (now - lastRefill) * bytesPerSec / 1e9);
+            }
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.ford442.droidman;
+
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the music listing of a storage_manager mirror. Files with the same name and a
+ * different extension (song.flac, song.mp3, song.opus) are renditions of one song;
+ * "bitrate" (kbps) and "size" (bytes) are optional, and alternates can also be listed
+ * inline with a file under "renditions". Listings from several mirrors are merged
+ * into one song list on the UI thread.
+ */
+public class CloudCatalog {
+
+    static final String CATALOG_PATH = "/api/storage/files?folder=music";
+
+    private final MirrorPool mirrorPool;
+    private final List<Song> songs = new ArrayList<>();
+    private final Map<String, Song> songsByStem = new HashMap<>();
+
+    public CloudCatalog(MirrorPool mirrorPool) {
+        this.mirrorPool = mirrorPool;
+    }
+
+    // Every merged song, in the order first listed
+    public List<Song> getSongs() {
+        return songs;
+    }
+
+    public void clear() {
+        songs.clear();
+        songsByStem.clear();
+    }
+
+    /**
+     * Adds one mirror's songs. A song another mirror already listed under the same name
+     * (any extension) gets the new renditions merged into it instead of a second entry;
+     * a file both mirrors list gains this mirror as a holder. Returns true if songs were added.
+     */
+    public boolean merge(List<Song> listed) {
+        boolean added = false;
+        for (Song song : listed) {
+            String stem = stemOf(song.getTitle());
+            Song known = songsByStem.get(stem);
+            if (known == null) {
+                songsByStem.put(stem, song);
+                songs.add(song);
+                added = true;
+                continue;
+            }
+            List<Rendition> merged = new ArrayList<>(known.getRenditions());
+            for (Rendition rendition : song.getRenditions()) {
+                Rendition same = findSameFile(merged, rendition);
+                if (same != null) same.addMirrors(rendition.getMirrors());
+                else merged.add(rendition);
+            }
+            known.setRenditions(merged);
+        }
+        return added;
+    }
+
+    // Mirrors serve the same file under the same path
+    private Rendition findSameFile(List<Rendition> renditions, Rendition rendition) {
+        String path = mirrorPool.pathOf(rendition.getUri().toString());
+        for (Rendition existing : renditions) {
+            if (path.equals(mirrorPool.pathOf(existing.getUri().toString()))) return existing;
+        }
+        return null;
+    }
+
+    /** Fetches and parses one mirror's listing; blocks, so call it off the UI thread. */
+    public List<Song> fetch(MirrorPool.Mirror mirror) throws IOException, JSONException {
+        MirrorPool.Response response = mirrorPool.open(mirror, CATALOG_PATH, 10000);
+        StringBuilder body = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.connection.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                body.append(line);
+            }
+        }
+        response.finished(body.length());
+        return parse(body.toString(), mirror.getBaseUrl());
+    }
+
+    static List<Song> parse(String json, String baseUrl) throws JSONException {
+        JSONArray files = new JSONObject(json).getJSONArray("files");
+
+        Map<String, List<Rendition>> groups = new LinkedHashMap<>();
+        Map<Rendition, String> names = new HashMap<>();
+        for (int i = 0; i < files.length(); i++) {
+            JSONObject fileObj = files.getJSONObject(i);
+            String filename = fileObj.getString("filename");
+            if (!Song.isSupportedAudioFile(filename)) continue;
+
+            String fileUrl = fileObj.optString("url", null);
+            // Fallback if URL is missing: the mirror serves its files under /file=
+            if (fileUrl == null || fileUrl.isEmpty() || fileUrl.equals("null")) {
+                fileUrl = baseUrl + "/file=" + filename;
+            }
+
+            String stem = filename.substring(0, filename.lastIndexOf('.'));
+            String key = stemOf(filename);
+            List<Rendition> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            Rendition rendition = new Rendition(Uri.parse(fileUrl), Rendition.formatOf(filename),
+                    fileObj.optInt("bitrate", 0) * 1000, fileObj.optLong("size", 0));
+            rendition.addMirrors(Collections.singleton(baseUrl));
+            group.add(rendition);
+            names.put(rendition, filename);
+
+            JSONArray alternates = fileObj.optJSONArray("renditions");
+            for (int j = 0; alternates != null && j < alternates.length(); j++) {
+                JSONObject alternate = alternates.getJSONObject(j);
+                String url = alternate.optString("url", "");
+                if (url.isEmpty()) continue;
+                if (!url.startsWith("http")) url = baseUrl + "/file=" + url;
+                String format = alternate.optString("format", Rendition.formatOf(url)).toUpperCase();
+                Rendition inline = new Rendition(Uri.parse(url), format,
+                        alternate.optInt("bitrate", 0) * 1000, alternate.optLong("size", 0));
+                inline.addMirrors(Collections.singleton(baseUrl));
+                group.add(inline);
+                names.put(inline, stem + "." + format.toLowerCase());
+            }
+        }
+
+        // Each song is named after its best rendition; the player picks one per track later
+        List<Song> songs = new ArrayList<>();
+        for (List<Rendition> group : groups.values()) {
+            Rendition best = QualitySelector.best(group);
+            Song song = new Song(best.getUri(), names.get(best));
+            song.setRenditions(group);
+            songs.add(song);
+        }
+        return songs;
+    }
+
+    private static String stemOf(String filename) {
+        int lastDot = filename.lastIndexOf('.');
+        return (lastDot > 0 ? filename.substring(0, lastDot) : filename).toLowerCase();
+    }
+}
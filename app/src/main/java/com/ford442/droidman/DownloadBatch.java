@@ -0,0 +1,78 @@
+package com.ford442.droidman;
+
+/**
+ * Aggregate progress for a group of songs downloaded together.
+ * Sizes are learned from Content-Length as each transfer starts; songs that
+ * have not started yet are estimated from the average of the known ones.
+ */
+public class DownloadBatch {
+
+    // Minimum gap between two progress callbacks
+    private static final long REPORT_INTERVAL_MS = 500;
+
+    private final int songsTotal;
+    private final BandwidthGovernor.TransferClass transferClass;
+    private final long startTime = System.currentTimeMillis();
+    private int songsDone = 0;
+    private int songsSized = 0;
+    private long bytesDone = 0;
+    private long bytesKnown = 0;
+    private long lastReport = 0;
+
+    public DownloadBatch(int songsTotal, BandwidthGovernor.TransferClass transferClass) {
+        this.songsTotal = songsTotal;
+        this.transferClass = transferClass;
+    }
+
+    public BandwidthGovernor.TransferClass getTransferClass() {
+        return transferClass;
+    }
+
+    public synchronized void onSongStarted(long contentLength) {
+        if (contentLength > 0) {
+            bytesKnown += contentLength;
+            songsSized++;
+        }
+    }
+
+    public synchronized void onBytes(int count) {
+        bytesDone += count;
+    }
+
+    public synchronized void onSongFinished() {
+        songsDone++;
+    }
+
+    public synchronized boolean shouldReport() {
+        long now = System.currentTimeMillis();
+        if (songsDone < songsTotal && now - lastReport < REPORT_INTERVAL_MS) return false;
+        lastReport = now;
+        return true;
+    }
+
+    public synchronized int getSongsDone() {
+        return songsDone;
+    }
+
+    public int getSongsTotal() {
+        return songsTotal;
+    }
+
+    public synchronized long getBytesDone() {
+        return bytesDone;
+    }
+
+    public synchronized long getBytesExpected() {
+        if (songsSized == 0) return Math.max(bytesDone, 0);
+        long average = bytesKnown / songsSized;
+        return Math.max(bytesKnown + average * (songsTotal - songsSized), bytesDone);
+    }
+
+    // Remaining time at the average rate so far, or -1 while there is not enough data
+    public synchronized long getEtaMs() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (bytesDone == 0 || elapsed == 0) return -1;
+        long remaining = getBytesExpected() - bytesDone;
+        return remaining * elapsed / bytesDone;
+    }
+}
@@ -0,0 +1,138 @@
+package com.ford442.droidman;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.upstream.DataReader;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+
+import java.io.IOException;
+
+/**
+ * Wraps an ExoPlayer extractor so seeking uses a prebuilt {@link SeekIndex} instead of
+ * the extractor's own estimate. After a seek, sample timestamps are rebased onto the
+ * index's exact time for the frame that was jumped to, since the wrapped extractor
+ * would otherwise derive them from its (possibly VBR-inaccurate) seeker.
+ */
+public class IndexedExtractor implements Extractor {
+
+    private final Extractor delegate;
+    private final SeekIndex index;
+    private long timeOffsetUs = 0;
+    private long pendingBaseTimeUs = C.TIME_UNSET;
+
+    public IndexedExtractor(Extractor delegate, SeekIndex index) {
+        this.delegate = delegate;
+        this.index = index;
+    }
+
+    @Override
+    public boolean sniff(ExtractorInput input) throws IOException {
+        return delegate.sniff(input);
+    }
+
+    @Override
+    public void init(ExtractorOutput output) {
+        delegate.init(new ExtractorOutput() {
+            @Override
+            public TrackOutput track(int id, int type) {
+                return new RebasingTrackOutput(output.track(id, type));
+            }
+
+            @Override
+            public void endTracks() {
+                output.endTracks();
+            }
+
+            @Override
+            public void seekMap(SeekMap seekMap) {
+                output.seekMap(new IndexSeekMap());
+            }
+        });
+    }
+
+    @Override
+    public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException {
+        return delegate.read(input, seekPosition);
+    }
+
+    @Override
+    public void seek(long position, long timeUs) {
+        delegate.seek(position, timeUs);
+        int point = index.getPointForPosition(position);
+        if (point >= 0) {
+            pendingBaseTimeUs = index.getTimeUs(point);
+        } else {
+            timeOffsetUs = 0;
+            pendingBaseTimeUs = C.TIME_UNSET;
+        }
+    }
+
+    @Override
+    public void release() {
+        delegate.release();
+    }
+
+    private class IndexSeekMap implements SeekMap {
+        @Override
+        public boolean isSeekable() {
+            return true;
+        }
+
+        @Override
+        public long getDurationUs() {
+            return index.getDurationUs();
+        }
+
+        @Override
+        public SeekPoints getSeekPoints(long timeUs) {
+            int point = index.getPointForTimeUs(timeUs);
+            SeekPoint first = new SeekPoint(index.getTimeUs(point), index.getPosition(point));
+            if (first.timeUs == timeUs || point == index.getPointCount() - 1) {
+                return new SeekPoints(first);
+            }
+            return new SeekPoints(first, new SeekPoint(index.getTimeUs(point + 1), index.getPosition(point + 1)));
+        }
+    }
+
+    private class RebasingTrackOutput implements TrackOutput {
+        private final TrackOutput output;
+
+        RebasingTrackOutput(TrackOutput output) {
+            this.output = output;
+        }
+
+        @Override
+        public void format(Format format) {
+            output.format(format);
+        }
+
+        @Override
+        public int sampleData(DataReader input, int length, boolean allowEndOfInput, int sampleDataPart) throws IOException {
+            return output.sampleData(input, length, allowEndOfInput, sampleDataPart);
+        }
+
+        @Override
+        public void sampleData(ParsableByteArray data, int length, int sampleDataPart) {
+            output.sampleData(data, length, sampleDataPart);
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, int flags, int size, int offset, @Nullable CryptoData cryptoData) {
+            // The first sample after a seek is the indexed frame itself
+            if (pendingBaseTimeUs != C.TIME_UNSET) {
+                timeOffsetUs = pendingBaseTimeUs - timeUs;
+                pendingBaseTimeUs = C.TIME_UNSET;
+            }
+            output.sampleMetadata(timeUs + timeOffsetUs, flags, size, offset, cryptoData);
+        }
+    }
+}
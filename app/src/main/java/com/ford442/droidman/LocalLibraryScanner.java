@@ -0,0 +1,206 @@
+package com.ford442.droidman;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans on-device music folders in parallel on a work-stealing pool, one task per directory.
+ * A persisted index keeps the audio file names and subdirectories of every directory plus
+ * its mtime; a directory whose mtime has not changed is not listed again on rescan.
+ * Songs are built from file names only, so edits inside a file need no rescan.
+ */
+public class LocalLibraryScanner {
+
+    private static final String TAG = "LocalLibraryScanner";
+    private static final int MAGIC = 0x444D4C31; // "DML1"
+
+    private final File indexFile;
+    private final ForkJoinPool pool = new ForkJoinPool();
+    private final Map<String, DirEntry> index = new ConcurrentHashMap<>();
+    private boolean indexLoaded = false;
+
+    // Called from pool threads; songs arrive one directory at a time
+    public interface Listener {
+        void onSongsFound(List<Song> songs);
+        void onScanFinished(int totalSongs, int dirsListed, int dirsReused);
+    }
+
+    private static class DirEntry {
+        final long mtime;
+        final List<String> files = new ArrayList<>();
+        final List<String> subdirs = new ArrayList<>();
+
+        DirEntry(long mtime) {
+            this.mtime = mtime;
+        }
+    }
+
+    public LocalLibraryScanner(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /** Starts a scan of the given roots in the background; missing roots are skipped. */
+    public void scan(List<File> roots, Listener listener) {
+        pool.execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                if (!indexLoaded) {
+                    loadIndex();
+                    indexLoaded = true;
+                }
+                Map<String, DirEntry> previous = new ConcurrentHashMap<>(index);
+                index.clear();
+
+                ScanState state = new ScanState(previous, listener);
+                List<ScanTask> tasks = new ArrayList<>();
+                for (File root : roots) {
+                    if (root.isDirectory()) tasks.add(new ScanTask(root, state));
+                }
+                invokeAll(tasks);
+
+                saveIndex();
+                Log.i(TAG, "Scan finished: " + state.songs.get() + " songs, " + state.listed.get() + " dirs listed, " + state.reused.get() + " reused");
+                listener.onScanFinished(state.songs.get(), state.listed.get(), state.reused.get());
+            }
+        });
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static class ScanState {
+        final Map<String, DirEntry> previous;
+        final Listener listener;
+        final AtomicInteger songs = new AtomicInteger();
+        final AtomicInteger listed = new AtomicInteger();
+        final AtomicInteger reused = new AtomicInteger();
+
+        ScanState(Map<String, DirEntry> previous, Listener listener) {
+            this.previous = previous;
+            this.listener = listener;
+        }
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private final File dir;
+        private final ScanState state;
+
+        ScanTask(File dir, ScanState state) {
+            this.dir = dir;
+            this.state = state;
+        }
+
+        @Override
+        protected void compute() {
+            String path = dir.getAbsolutePath();
+            long mtime = dir.lastModified();
+            DirEntry entry = state.previous.get(path);
+
+            if (entry != null && entry.mtime == mtime) {
+                state.reused.incrementAndGet();
+            } else {
+                entry = listDirectory(mtime);
+                state.listed.incrementAndGet();
+            }
+            index.put(path, entry);
+
+            if (!entry.files.isEmpty()) {
+                List<Song> songs = new ArrayList<>(entry.files.size());
+                for (String name : entry.files) songs.add(new Song(new File(dir, name)));
+                state.songs.addAndGet(songs.size());
+                state.listener.onSongsFound(songs);
+            }
+
+            // Subdirectories are always visited: their changes do not touch this directory's mtime
+            List<ScanTask> children = new ArrayList<>(entry.subdirs.size());
+            for (String name : entry.subdirs) children.add(new ScanTask(new File(dir, name), state));
+            invokeAll(children);
+        }
+
+        private DirEntry listDirectory(long mtime) {
+            DirEntry entry = new DirEntry(mtime);
+            File[] children = dir.listFiles();
+            if (children == null) return entry;
+            for (File child : children) {
+                String name = child.getName();
+                if (name.startsWith(".")) continue;
+                if (child.isDirectory()) {
+                    entry.subdirs.add(name);
+                } else if (Song.isSupportedAudioFile(name)) {
+                    entry.files.add(name);
+                }
+            }
+            return entry;
+        }
+    }
+
+    private void loadIndex() {
+        if (!indexFile.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) return;
+            int dirCount = in.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                String path = in.readUTF();
+                DirEntry entry = new DirEntry(in.readLong());
+                int fileCount = in.readInt();
+                for (int j = 0; j < fileCount; j++) {
+                    entry.files.add(in.readUTF());
+                }
+                int subdirCount = in.readInt();
+                for (int j = 0; j < subdirCount; j++) {
+                    entry.subdirs.add(in.readUTF());
+                }
+                index.put(path, entry);
+            }
+        } catch (IOException e) {
+            // A damaged index only costs a full rescan
+            Log.w(TAG, "Could not read library index", e);
+            index.clear();
+        }
+    }
+
+    private void saveIndex() {
+        File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(index.size());
+            for (Map.Entry<String, DirEntry> dir : index.entrySet()) {
+                DirEntry entry = dir.getValue();
+                out.writeUTF(dir.getKey());
+                out.writeLong(entry.mtime);
+                out.writeInt(entry.files.size());
+                for (String name : entry.files) {
+                    out.writeUTF(name);
+                }
+                out.writeInt(entry.subdirs.size());
+                for (String name : entry.subdirs) {
+                    out.writeUTF(name);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write library index", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(indexFile)) {
+            Log.w(TAG, "Could not replace library index");
+            tmp.delete();
+        }
+    }
+}
@@ -6,54 +6,70 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.StatFs;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.text.format.DateUtils;
 import android.text.format.Formatter;
+import android.view.View;
 import android.widget.Button;
-import android.widget.EditText; // No longer needed, but keeping to minimize diff noise if preferred
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import androidx.appcompat.app.AlertDialog; // No longer needed
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MainActivity extends AppCompatActivity implements SongAdapter.OnSongClickListener {
 
     private RecyclerView recyclerView;
     private SongAdapter adapter;
     private Button btnSwitchView;
-    private Button btnPlay, btnNext, btnPrevious;
-    private TextView tvSongTitle, tvSongArtist, tvDeviceStatus, tvSubtitle;
+    private Button btnPlay, btnNext, btnPrevious, btnAddAll, btnClearPlaylist;
+    private TextView tvSongTitle, tvSongArtist, tvDeviceStatus, tvSubtitle, tvDownloadProgress;
+    private EditText etFilter;
 
     private MusicService musicService;
     private boolean serviceBound = false;
     
-    // Hardcoded API URL for ford442/storage_manager space
-    // Note: Using the direct .hf.space domain which is required for API calls
-    private static final String DEFAULT_API_URL = "https://ford442-storage-manager.hf.space";
-    private String currentApiUrl = DEFAULT_API_URL;
+    // storage_manager replicas are listed in R.array.api_mirrors (see strings.xml)
+    // Refreshes the throughput figures in the status line while the activity is visible
+    private static final long STATUS_REFRESH_MS = 2000;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable statusUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateDeviceStatus();
+            handler.postDelayed(this, STATUS_REFRESH_MS);
+        }
+    };
+    private MirrorPool mirrorPool;
+    private CloudCatalog cloudCatalog;
 
-    private List<Song> cloudSongs = new ArrayList<>();
+    private List<Song> localSongs = new ArrayList<>();
+    private Set<String> localSongPaths = new HashSet<>();
+    private LocalLibraryScanner localScanner;
+    private boolean localScanRunning = false;
     private boolean isShowingLibrary = true;
 
     private final ServiceConnection serviceConnection = new ServiceConnection() {
@@ -73,6 +89,10 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
                     updatePlayButton(isPlaying);
                 }
             });
+            musicService.setDownloadProgressListener((songsDone, songsTotal, bytesDone, bytesExpected, etaMs) ->
+                    runOnUiThread(() -> updateDownloadProgress(songsDone, songsTotal, bytesDone, bytesExpected, etaMs)));
+            // The service may have restored a playlist from its journal
+            updateNowPlaying(musicService.getCurrentSong());
             updateListView();
         }
 
@@ -92,14 +112,25 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
         setupRecyclerView();
         setupClickListeners();
         
-        // Directly fetch songs using the hardcoded URL instead of showing dialog
+        // Directly fetch songs from the configured mirrors instead of showing dialog
+        mirrorPool = MirrorPool.getInstance(this);
+        cloudCatalog = new CloudCatalog(mirrorPool);
         fetchSongsFromApi();
         
+        localScanner = new LocalLibraryScanner(new File(getFilesDir(), "local_library.index"));
+
+        List<String> missingPermissions = new ArrayList<>();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
-                ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.POST_NOTIFICATIONS}, 1);
+                missingPermissions.add(Manifest.permission.POST_NOTIFICATIONS);
             }
         }
+        if (ContextCompat.checkSelfPermission(this, audioPermission()) != PackageManager.PERMISSION_GRANTED) {
+            missingPermissions.add(audioPermission());
+        }
+        if (!missingPermissions.isEmpty()) {
+            ActivityCompat.requestPermissions(this, missingPermissions.toArray(new String[0]), 1);
+        }
 
         Intent intent = new Intent(this, MusicService.class);
         bindService(intent, serviceConnection, BIND_AUTO_CREATE);
@@ -116,10 +147,16 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
         tvSongArtist = findViewById(R.id.tvSongArtist);
         tvDeviceStatus = findViewById(R.id.tvDeviceStatus);
         tvSubtitle = findViewById(R.id.tvSubtitle);
+        tvDownloadProgress = findViewById(R.id.tvDownloadProgress);
+        btnAddAll = findViewById(R.id.btnAddAll);
+        btnClearPlaylist = findViewById(R.id.btnClearPlaylist);
+        etFilter = findViewById(R.id.etFilter);
     }
 
     private void setupRecyclerView() {
         adapter = new SongAdapter(this);
+        adapter.setOnSelectionChangedListener(count ->
+                btnAddAll.setText(count > 0 ? "Add Selected (" + count + ")" : getString(R.string.add_all)));
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
         recyclerView.setAdapter(adapter);
     }
@@ -139,6 +176,62 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
 
         btnNext.setOnClickListener(v -> { if (serviceBound && musicService != null) musicService.next(); });
         btnPrevious.setOnClickListener(v -> { if (serviceBound && musicService != null) musicService.previous(); });
+
+        // Adds the selection if there is one, otherwise everything currently listed (filtered or whole folder)
+        btnAddAll.setOnClickListener(v -> {
+            if (!serviceBound || musicService == null) return;
+            List<Song> songs = adapter.getSelectedSongs();
+            if (songs.isEmpty()) songs = new ArrayList<>(adapter.getSongs());
+            if (songs.isEmpty()) return;
+            musicService.addAllToPlaylist(songs);
+            adapter.clearSelection();
+            Toast.makeText(this, "Adding " + songs.size() + " songs to RAM", Toast.LENGTH_SHORT).show();
+        });
+
+        btnClearPlaylist.setOnClickListener(v -> {
+            if (!serviceBound || musicService == null || musicService.getPlaylist().isEmpty()) return;
+            new AlertDialog.Builder(this)
+                    .setMessage(R.string.clear_playlist_confirm)
+                    .setPositiveButton(R.string.clear_playlist, (dialog, which) -> {
+                        musicService.clearPlaylist();
+                        updateNowPlaying(null);
+                        updateListView();
+                    })
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .show();
+        });
+
+        etFilter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (isShowingLibrary) adapter.setSongs(filterSongs(librarySongs()));
+            }
+        });
+    }
+
+    private List<Song> filterSongs(List<Song> songs) {
+        String query = etFilter.getText().toString().trim().toLowerCase();
+        if (query.isEmpty()) return songs;
+        List<Song> result = new ArrayList<>();
+        for (Song song : songs) {
+            if (song.getTitle().toLowerCase().contains(query)) result.add(song);
+        }
+        return result;
+    }
+
+    private void updateDownloadProgress(int songsDone, int songsTotal, long bytesDone, long bytesExpected, long etaMs) {
+        tvDownloadProgress.setVisibility(View.VISIBLE);
+        if (songsDone >= songsTotal) {
+            tvDownloadProgress.setText(String.format("Downloaded %d/%d songs  |  %s", songsDone, songsTotal, Formatter.formatFileSize(this, bytesDone)));
+        } else {
+            String bytes = Formatter.formatFileSize(this, bytesDone) + " / " + Formatter.formatFileSize(this, bytesExpected);
+            String eta = etaMs < 0 ? "--:--" : DateUtils.formatElapsedTime(etaMs / 1000);
+            tvDownloadProgress.setText(String.format("Downloading %d/%d  |  %s  |  ETA %s", songsDone, songsTotal, bytes, eta));
+        }
     }
     
     // Dialog method removed as it is no longer needed
@@ -146,11 +239,19 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
     private void updateListView() {
         if (isShowingLibrary) {
             btnSwitchView.setText("View: Cloud Library");
-            tvSubtitle.setText("Tap cloud songs to add to RAM");
-            adapter.setSongs(cloudSongs);
+            tvSubtitle.setText("Tap cloud or device songs to add to RAM, long-press to select");
+            etFilter.setVisibility(View.VISIBLE);
+            btnAddAll.setVisibility(View.VISIBLE);
+            btnClearPlaylist.setVisibility(View.GONE);
+            adapter.setSelectionEnabled(true);
+            adapter.setSongs(filterSongs(librarySongs()));
         } else {
             btnSwitchView.setText("View: RAM Playlist");
             tvSubtitle.setText("Songs currently loaded in RAM");
+            etFilter.setVisibility(View.GONE);
+            btnAddAll.setVisibility(View.GONE);
+            btnClearPlaylist.setVisibility(View.VISIBLE);
+            adapter.setSelectionEnabled(false);
             if (serviceBound && musicService != null) {
                 adapter.setSongs(musicService.getPlaylist());
             } else {
@@ -162,7 +263,93 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
     @Override
     protected void onResume() {
         super.onResume();
-        updateDeviceStatus();
+        handler.removeCallbacks(statusUpdater);
+        statusUpdater.run();
+        // Also runs once the permission dialog closes; unchanged folders come straight from the index
+        if (ContextCompat.checkSelfPermission(this, audioPermission()) == PackageManager.PERMISSION_GRANTED) {
+            scanLocalLibrary();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(statusUpdater);
+    }
+
+    private String audioPermission() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                ? Manifest.permission.READ_MEDIA_AUDIO : Manifest.permission.READ_EXTERNAL_STORAGE;
+    }
+
+    // Configured folders plus the Music folder at the root of every mounted volume (SD cards included)
+    private List<File> localMusicDirs() {
+        List<File> dirs = new ArrayList<>();
+        for (String path : getResources().getStringArray(R.array.local_music_dirs)) {
+            dirs.add(new File(path));
+        }
+        for (File appDir : getExternalFilesDirs(null)) {
+            if (appDir == null) continue;
+            String appPath = appDir.getAbsolutePath();
+            int volumeEnd = appPath.indexOf("/Android/data/");
+            if (volumeEnd <= 0) continue;
+            File music = new File(appPath.substring(0, volumeEnd), Environment.DIRECTORY_MUSIC);
+            if (!dirs.contains(music)) dirs.add(music);
+        }
+        return dirs;
+    }
+
+    private void scanLocalLibrary() {
+        if (localScanRunning) return;
+        localScanRunning = true;
+        Set<String> foundPaths = new HashSet<>();
+
+        localScanner.scan(localMusicDirs(), new LocalLibraryScanner.Listener() {
+            @Override
+            public void onSongsFound(List<Song> songs) {
+                runOnUiThread(() -> mergeLocalSongs(songs, foundPaths));
+            }
+
+            @Override
+            public void onScanFinished(int totalSongs, int dirsListed, int dirsReused) {
+                runOnUiThread(() -> {
+                    localScanRunning = false;
+                    // Drop songs that were deleted since the last scan
+                    List<Song> remaining = new ArrayList<>();
+                    for (Song song : localSongs) {
+                        if (foundPaths.contains(song.getPath())) remaining.add(song);
+                    }
+                    if (remaining.size() != localSongs.size()) {
+                        localSongs = remaining;
+                        localSongPaths = new HashSet<>(foundPaths);
+                        if (isShowingLibrary) adapter.setSongs(filterSongs(librarySongs()));
+                    }
+                });
+            }
+        });
+    }
+
+    private void mergeLocalSongs(List<Song> songs, Set<String> foundPaths) {
+        boolean changed = false;
+        for (Song song : songs) {
+            foundPaths.add(song.getPath());
+            if (localSongPaths.add(song.getPath())) {
+                localSongs.add(song);
+                changed = true;
+            }
+        }
+        if (changed && isShowingLibrary) {
+            adapter.setSongs(filterSongs(librarySongs()));
+        }
+    }
+
+    // Library view shows cloud songs followed by songs found on the device
+    private List<Song> librarySongs() {
+        List<Song> cloudSongs = cloudCatalog.getSongs();
+        List<Song> songs = new ArrayList<>(cloudSongs.size() + localSongs.size());
+        songs.addAll(cloudSongs);
+        songs.addAll(localSongs);
+        return songs;
     }
 
     private void updateDeviceStatus() {
@@ -178,6 +365,17 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
         String availStorage = Formatter.formatFileSize(this, availableBlocks * blockSize);
 
         String statusText = String.format("Free RAM: %s  |  Free Storage: %s", availRam, availStorage);
+        if (serviceBound && musicService != null) {
+            BandwidthGovernor governor = musicService.getBandwidthGovernor();
+            statusText += String.format("\nLink: %s/s  |  Rebuffers: %d  |  Saved: %s",
+                    Formatter.formatFileSize(this, governor.getLinkBytesPerSec()), governor.getRebufferCount(),
+                    Formatter.formatFileSize(this, musicService.getQualitySelector().getBytesSaved()));
+            statusText += String.format("\nPlay: %s/s (%s/s reserved)  |  Prefetch: %s/s  |  Bulk: %s/s",
+                    Formatter.formatFileSize(this, governor.getThroughputBytesPerSec(BandwidthGovernor.TransferClass.PLAYBACK)),
+                    Formatter.formatFileSize(this, governor.getReservedBytesPerSec()),
+                    Formatter.formatFileSize(this, governor.getThroughputBytesPerSec(BandwidthGovernor.TransferClass.PREFETCH)),
+                    Formatter.formatFileSize(this, governor.getThroughputBytesPerSec(BandwidthGovernor.TransferClass.BULK)));
+        }
 
         if (memoryInfo.availMem < 200 * 1024 * 1024) {
             tvDeviceStatus.setTextColor(ContextCompat.getColor(this, android.R.color.holo_red_light));
@@ -188,74 +386,49 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
         tvDeviceStatus.setText(statusText);
     }
 
+    // Queries every mirror at once; the catalog grows as each one answers, one entry per song name
     private void fetchSongsFromApi() {
-        // Use 'music' as the folder name
-        String endpoint = currentApiUrl + "/api/storage/files?folder=music";
-        
-        Toast.makeText(this, "Fetching from API...", Toast.LENGTH_SHORT).show();
-
-        Executors.newSingleThreadExecutor().execute(() -> {
-            List<Song> songs = new ArrayList<>();
-            try {
-                URL url = new URL(endpoint);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("GET");
-                connection.setConnectTimeout(10000);
-                connection.setReadTimeout(10000);
-
-                if (connection.getResponseCode() == 200) {
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                    StringBuilder response = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        response.append(line);
-                    }
-                    reader.close();
-
-                    // Parse JSON Response
-                    JSONObject jsonResponse = new JSONObject(response.toString());
-                    JSONArray files = jsonResponse.getJSONArray("files");
-
-                    for (int i = 0; i < files.length(); i++) {
-                        JSONObject fileObj = files.getJSONObject(i);
-                        String filename = fileObj.getString("filename");
-
-                        // Check if file is audio
-                        if (isSupportedAudioFile(filename)) {
-                            String fileUrl = fileObj.optString("url", null);
-
-                            // Fallback if URL is missing
-                            if (fileUrl == null || fileUrl.isEmpty() || fileUrl.equals("null")) {
-                                // If the API doesn't return a full URL, we construct one using the Space URL
-                                // This endpoint format depends on your specific API implementation
-                                fileUrl = currentApiUrl + "/file=" + filename; 
-                            }
-
-                            songs.add(new Song(Uri.parse(fileUrl), filename));
+        List<MirrorPool.Mirror> mirrors = mirrorPool.getMirrors();
+        if (mirrors.isEmpty()) {
+            Toast.makeText(this, "API Error: no mirrors configured in api_mirrors", Toast.LENGTH_LONG).show();
+            return;
+        }
+        Toast.makeText(this, "Fetching from " + mirrors.size() + " API mirror(s)...", Toast.LENGTH_SHORT).show();
+
+        cloudCatalog.clear();
+        AtomicInteger pending = new AtomicInteger(mirrors.size());
+        AtomicInteger answered = new AtomicInteger();
+        AtomicReference<Exception> lastError = new AtomicReference<>();
+
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(mirrors.size());
+        for (MirrorPool.Mirror mirror : mirrors) {
+            fetchExecutor.execute(() -> {
+                try {
+                    List<Song> songs = cloudCatalog.fetch(mirror);
+                    answered.incrementAndGet();
+                    runOnUiThread(() -> mergeCatalog(songs));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    lastError.set(e);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    runOnUiThread(() -> {
+                        if (answered.get() == 0) {
+                            Toast.makeText(this, "API Error: " + lastError.get().getMessage(), Toast.LENGTH_LONG).show();
+                        } else {
+                            Toast.makeText(this, "API Loaded: " + cloudCatalog.getSongs().size() + " songs from " + answered.get() + " mirror(s)", Toast.LENGTH_SHORT).show();
                         }
-                    }
-                } else {
-                    throw new Exception("HTTP Error: " + connection.getResponseCode());
+                    });
                 }
-
-                runOnUiThread(() -> {
-                    cloudSongs = songs;
-                    if (isShowingLibrary) {
-                        adapter.setSongs(cloudSongs);
-                    }
-                    Toast.makeText(this, "API Loaded: " + songs.size() + " songs", Toast.LENGTH_SHORT).show();
-                });
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                runOnUiThread(() -> Toast.makeText(this, "API Error: " + e.getMessage(), Toast.LENGTH_LONG).show());
-            }
-        });
+            });
+        }
+        fetchExecutor.shutdown();
     }
 
-    private boolean isSupportedAudioFile(String name) {
-        String lowerName = name.toLowerCase();
-        return lowerName.endsWith(".mp3") || lowerName.endsWith(".flac") || lowerName.endsWith(".wav");
+    private void mergeCatalog(List<Song> songs) {
+        if (cloudCatalog.merge(songs) && isShowingLibrary) {
+            adapter.setSongs(filterSongs(librarySongs()));
+        }
     }
 
     @Override
@@ -296,5 +469,6 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
         }
         Intent intent = new Intent(this, MusicService.class);
         stopService(intent);
+        localScanner.shutdown();
     }
 }
@@ -0,0 +1,298 @@
+package com.ford442.droidman;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Set of storage_manager replicas with a rolling latency/throughput score each.
+ * URLs that point at any configured mirror can be rewritten to the currently
+ * fastest healthy one, and opened with a hedged request that races a second
+ * mirror when the first is slow to answer. Replicas may hold different files,
+ * so callers pass the mirrors that listed a file and routing stays among them.
+ */
+public class MirrorPool {
+
+    private static final String TAG = "MirrorPool";
+
+    // Weight of the newest sample in the rolling averages
+    private static final double SMOOTHING = 0.3;
+    // Size used to turn latency + throughput into one "time to fetch a song" score
+    private static final long REFERENCE_SIZE = 8 * 1024 * 1024;
+    // Assumed until a mirror has been measured
+    private static final double DEFAULT_LATENCY_MS = 1000;
+    private static final double DEFAULT_BYTES_PER_MS = 500;
+    private static final int MAX_FAILURES = 3;
+    private static final long FAILURE_COOLDOWN_MS = 30000;
+    private static final long MIN_HEDGE_DELAY_MS = 1500;
+    // Smaller transfers are dominated by latency and say nothing about throughput
+    private static final long MIN_THROUGHPUT_SAMPLE = 64 * 1024;
+
+    private static MirrorPool instance;
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+    private final ExecutorService hedgeExecutor = Executors.newCachedThreadPool();
+
+    public static synchronized MirrorPool getInstance(Context context) {
+        if (instance == null) {
+            instance = new MirrorPool(Arrays.asList(context.getResources().getStringArray(R.array.api_mirrors)));
+        }
+        return instance;
+    }
+
+    public MirrorPool(List<String> baseUrls) {
+        for (String baseUrl : baseUrls) {
+            String trimmed = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+            mirrors.add(new Mirror(trimmed));
+        }
+    }
+
+    public static class Mirror {
+        private final String baseUrl;
+        private double latencyMs = -1;
+        private double bytesPerMs = -1;
+        private int failures = 0;
+        private long lastFailure = 0;
+
+        Mirror(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        public synchronized void recordLatency(long ms) {
+            latencyMs = latencyMs < 0 ? ms : latencyMs + SMOOTHING * (ms - latencyMs);
+            failures = 0;
+        }
+
+        public synchronized void recordTransfer(long bytes, long ms) {
+            if (bytes < MIN_THROUGHPUT_SAMPLE || ms <= 0) return;
+            double rate = (double) bytes / ms;
+            bytesPerMs = bytesPerMs < 0 ? rate : bytesPerMs + SMOOTHING * (rate - bytesPerMs);
+        }
+
+        public synchronized void recordFailure() {
+            failures++;
+            lastFailure = System.currentTimeMillis();
+        }
+
+        // A mirror that keeps failing is benched for a while, then tried again
+        public synchronized boolean isHealthy() {
+            return failures < MAX_FAILURES || System.currentTimeMillis() - lastFailure > FAILURE_COOLDOWN_MS;
+        }
+
+        // Estimated milliseconds to fetch a typical song; lower is better
+        public synchronized double score() {
+            double latency = latencyMs < 0 ? DEFAULT_LATENCY_MS : latencyMs;
+            double rate = bytesPerMs < 0 ? DEFAULT_BYTES_PER_MS : bytesPerMs;
+            return latency + REFERENCE_SIZE / rate;
+        }
+
+        synchronized long hedgeDelayMs() {
+            return latencyMs < 0 ? MIN_HEDGE_DELAY_MS : Math.max(MIN_HEDGE_DELAY_MS, (long) (3 * latencyMs));
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s (latency %.0f ms, %.0f KB/s, failures %d)", baseUrl, latencyMs, bytesPerMs * 1000 / 1024, failures);
+        }
+    }
+
+    /** An open connection whose response headers have arrived, and the mirror that served it. */
+    public static class Response {
+        public final HttpURLConnection connection;
+        private final Mirror mirror;
+        private final long startTime = System.currentTimeMillis();
+
+        Response(HttpURLConnection connection, Mirror mirror) {
+            this.connection = connection;
+            this.mirror = mirror;
+        }
+
+        public void finished(long bytes) {
+            finished(bytes, 0);
+        }
+
+        // throttledMs is time the reader spent held back by its own rate limit, which says nothing about the mirror
+        public void finished(long bytes, long throttledMs) {
+            if (mirror != null) mirror.recordTransfer(bytes, System.currentTimeMillis() - startTime - throttledMs);
+        }
+
+        public void failed() {
+            if (mirror != null) mirror.recordFailure();
+        }
+    }
+
+    public List<Mirror> getMirrors() {
+        return Collections.unmodifiableList(mirrors);
+    }
+
+    public List<Mirror> ranked() {
+        return ranked(Collections.<String>emptyList());
+    }
+
+    /**
+     * Healthy mirrors by score, benched ones after them as a last resort. Only mirrors
+     * whose base URL is in holders are included; an empty set (or one naming no
+     * configured mirror) means the file's location is unknown and all are tried.
+     */
+    public List<Mirror> ranked(Collection<String> holders) {
+        List<Mirror> eligible = new ArrayList<>();
+        for (Mirror mirror : mirrors) {
+            if (holders.contains(mirror.baseUrl)) eligible.add(mirror);
+        }
+        if (eligible.isEmpty()) eligible.addAll(mirrors);
+
+        List<Mirror> healthy = new ArrayList<>();
+        List<Mirror> benched = new ArrayList<>();
+        for (Mirror mirror : eligible) {
+            (mirror.isHealthy() ? healthy : benched).add(mirror);
+        }
+        Collections.sort(healthy, (a, b) -> Double.compare(a.score(), b.score()));
+        healthy.addAll(benched);
+        return healthy;
+    }
+
+    public Mirror findMirror(String url) {
+        for (Mirror mirror : mirrors) {
+            if (url.startsWith(mirror.baseUrl + "/")) return mirror;
+        }
+        return null;
+    }
+
+    // Path of a URL relative to the mirror it points at, which is the same on every replica
+    public String pathOf(String url) {
+        Mirror owner = findMirror(url);
+        return owner == null ? url : url.substring(owner.baseUrl.length());
+    }
+
+    /** Rewrites a URL on any mirror to the same path on the best holder; other URLs are returned unchanged. */
+    public String bestUrl(String url, Collection<String> holders) {
+        return bestUrl(url, holders, Collections.<String>emptySet());
+    }
+
+    // As above but skipping mirrors that already failed for this file; null once every one has
+    public String bestUrl(String url, Collection<String> holders, Collection<String> excluded) {
+        Mirror owner = findMirror(url);
+        if (owner == null) return url;
+        for (Mirror mirror : ranked(holders)) {
+            if (!excluded.contains(mirror.baseUrl)) return mirror.baseUrl + url.substring(owner.baseUrl.length());
+        }
+        return null;
+    }
+
+    /** Single GET against one mirror, recording its latency or failure. */
+    public Response open(Mirror mirror, String path, int timeoutMs) throws IOException {
+        return connect(mirror, mirror.baseUrl + path, timeoutMs, null);
+    }
+
+    /**
+     * Opens a GET for the URL. If it points at a mirror, the best mirror is tried
+     * first and the next one is raced against it once the first is slower than
+     * its usual latency allows (or fails); the first 200 response wins.
+     */
+    public Response openHedged(String url, Collection<String> holders, int timeoutMs) throws IOException {
+        Mirror owner = findMirror(url);
+        if (owner == null) return connect(null, url, timeoutMs, null);
+
+        final String path = url.substring(owner.baseUrl.length());
+        final List<Mirror> candidates = ranked(holders);
+        final AtomicReference<Response> winner = new AtomicReference<>();
+        ExecutorCompletionService<Response> attempts = new ExecutorCompletionService<>(hedgeExecutor);
+        List<Future<Response>> started = new ArrayList<>();
+        IOException lastError = null;
+        int next = 0;
+        int inFlight = 0;
+
+        try {
+            while (true) {
+                if (inFlight == 0) {
+                    if (next >= candidates.size()) break;
+                    started.add(submit(attempts, candidates.get(next++), path, timeoutMs, winner));
+                    inFlight++;
+                }
+
+                Future<Response> done;
+                if (next < candidates.size()) {
+                    done = attempts.poll(candidates.get(next - 1).hedgeDelayMs(), TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        Log.i(TAG, "Hedging " + path + " on " + candidates.get(next).baseUrl);
+                        started.add(submit(attempts, candidates.get(next++), path, timeoutMs, winner));
+                        inFlight++;
+                        continue;
+                    }
+                } else {
+                    done = attempts.take();
+                }
+                inFlight--;
+
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    lastError = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting", e);
+        } finally {
+            // Losers that are still connecting disconnect themselves once they see a winner
+            for (Future<Response> attempt : started) {
+                if (!attempt.isDone()) attempt.cancel(false);
+            }
+        }
+        throw lastError != null ? lastError : new IOException("No mirror available for " + path);
+    }
+
+    private Future<Response> submit(ExecutorCompletionService<Response> attempts, Mirror mirror, String path,
+                                    int timeoutMs, AtomicReference<Response> winner) {
+        return attempts.submit(() -> connect(mirror, mirror.baseUrl + path, timeoutMs, winner));
+    }
+
+    private static Response connect(Mirror mirror, String url, int timeoutMs, AtomicReference<Response> winner) throws IOException {
+        long start = System.currentTimeMillis();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        int code;
+        try {
+            connection.setRequestMethod("GET");
+            connection.setConnectTimeout(timeoutMs);
+            connection.setReadTimeout(timeoutMs);
+            code = connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();
+            if (mirror != null) mirror.recordFailure();
+            throw e;
+        }
+        if (code != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            // A 4xx means the mirror is up but refuses or lacks this file, which is not a health problem
+            if (mirror != null && (code < 400 || code >= 500)) mirror.recordFailure();
+            throw new IOException("HTTP Error: " + code + " from " + url);
+        }
+        if (mirror != null) mirror.recordLatency(System.currentTimeMillis() - start);
+
+        Response response = new Response(connection, mirror);
+        if (winner != null && !winner.compareAndSet(null, response)) {
+            connection.disconnect();
+            throw new IOException("Lost hedge race: " + url);
+        }
+        return response;
+    }
+}
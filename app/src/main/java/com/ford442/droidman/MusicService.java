@@ -1,5 +1,6 @@
 package com.ford442.droidman;
 
+import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -12,29 +13,48 @@ import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.media.app.NotificationCompat.MediaStyle;
 
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.PlaybackException;
 import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.mp3.Mp3Extractor;
+import com.google.android.exoplayer2.source.DefaultMediaSourceFactory;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.ProgressiveMediaSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultDataSource;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MusicService extends Service {
     
@@ -47,20 +67,49 @@ public class MusicService extends Service {
     public static final String ACTION_NEXT = "com.ford442.droidman.ACTION_NEXT";
     public static final String ACTION_PREVIOUS = "com.ford442.droidman.ACTION_PREVIOUS";
 
+    // How often the seek position is journaled while playing
+    private static final long POSITION_SAVE_INTERVAL_MS = 5000;
+    private static final String TEMP_FILE_PREFIX = "droidman_";
+
     private ExoPlayer player;
     private final IBinder binder = new MusicBinder();
-    private List<Song> playlist = new ArrayList<>();
-    private int currentPosition = -1;
+    // Copy-on-write: edited on the main thread, iterated by the download thread
+    private volatile List<Song> playlist = new CopyOnWriteArrayList<>();
+    private volatile int currentPosition = -1;
     private PlaybackListener playbackListener;
+    private DownloadProgressListener downloadProgressListener;
     private NotificationActionReceiver notificationActionReceiver;
     private ExecutorService downloadExecutor;
-    private Map<String, File> tempFileCache = new HashMap<>();
+    private Map<String, File> tempFileCache = new ConcurrentHashMap<>();
+    private PlaybackJournal journal;
+    private MirrorPool mirrorPool;
+    private final BandwidthGovernor bandwidthGovernor = new BandwidthGovernor();
+    private DataSource.Factory dataSourceFactory;
+    private boolean readySinceLastSeek = false;
+    private long streamBitrate = 0; // Of the current song while it streams, 0 when it plays from cache
+    private Rendition streamingRendition; // What the current song streams, if it does
+    private final Set<String> failedStreamMirrors = new HashSet<>(); // Mirrors the current song's stream failed on
+    private final QualitySelector qualitySelector = new QualitySelector();
+    private final AtomicBoolean upgradeQueued = new AtomicBoolean(false);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable positionSaver = new Runnable() {
+        @Override
+        public void run() {
+            savePlaybackPosition();
+            if (isPlaying()) handler.postDelayed(this, POSITION_SAVE_INTERVAL_MS);
+        }
+    };
 
     public interface PlaybackListener {
         void onSongChanged(Song song, int position);
         void onPlaybackStateChanged(boolean isPlaying);
     }
 
+    // Called on the download thread; etaMs is -1 until a rate is known
+    public interface DownloadProgressListener {
+        void onDownloadProgress(int songsDone, int songsTotal, long bytesDone, long bytesExpected, long etaMs);
+    }
+
     public class MusicBinder extends Binder {
         MusicService getService() {
             return MusicService.this;
@@ -71,9 +120,50 @@ public class MusicService extends Service {
     public void onCreate() {
         super.onCreate();
         createNotificationChannel();
+        dataSourceFactory = new DefaultDataSource.Factory(this).setTransferListener(new PlaybackTransferListener());
         initializePlayer();
         registerNotificationReceiver();
         downloadExecutor = Executors.newSingleThreadExecutor();
+        mirrorPool = MirrorPool.getInstance(this);
+        journal = new PlaybackJournal(getFilesDir());
+        restorePlaybackState();
+    }
+
+    // Rebuilds the playlist from the journal and cues the last song at its saved position (paused)
+    private void restorePlaybackState() {
+        PlaybackJournal.Snapshot snapshot = journal.restore();
+        List<Song> missing = new ArrayList<>();
+        for (PlaybackJournal.Entry entry : snapshot.entries) {
+            Song song = entry.toSong();
+            playlist.add(song);
+            File cached = entry.getValidCacheFile();
+            if (cached != null) {
+                tempFileCache.put(song.getPath(), cached);
+                song.setCachedRendition(entry.getCachedRendition());
+                song.setSeekIndex(SeekIndex.readFrom(SeekIndex.sidecarFor(cached)));
+            } else {
+                missing.add(song);
+            }
+        }
+        deleteOrphanedTempFiles();
+        queueDownloads(missing, BandwidthGovernor.TransferClass.BULK);
+        if (snapshot.currentIndex < 0 || snapshot.currentIndex >= playlist.size()) {
+            scheduleUpgrades();
+            return;
+        }
+
+        currentPosition = snapshot.currentIndex;
+        player.setMediaSource(buildMediaSource(playlist.get(currentPosition)));
+        updatePlaybackReservation(playlist.get(currentPosition));
+        player.seekTo(snapshot.positionMs);
+        player.prepare();
+        Log.i(TAG, "Resumed " + playlist.size() + " songs at index " + currentPosition + ", " + snapshot.positionMs + " ms");
+        scheduleUpgrades();
+    }
+
+    private void savePlaybackPosition() {
+        if (journal == null || player == null) return;
+        journal.recordPosition(currentPosition, currentPosition >= 0 ? player.getCurrentPosition() : 0);
     }
     
     // ... Receiver and InitPlayer methods (Same as before) ...
@@ -111,12 +201,45 @@ public class MusicService extends Service {
         player.addListener(new Player.Listener() {
             @Override
             public void onPlaybackStateChanged(int playbackState) {
+                if (playbackState == Player.STATE_READY) {
+                    readySinceLastSeek = true;
+                    // The real bitrate is known once the stream's format has been read
+                    Format format = player.getAudioFormat();
+                    Song song = getCurrentSong();
+                    if (song != null && format != null && format.bitrate != Format.NO_VALUE && isStreaming(song)) {
+                        streamBitrate = format.bitrate;
+                        applyPlaybackReservation();
+                    }
+                } else if (playbackState == Player.STATE_BUFFERING && readySinceLastSeek && player.getPlayWhenReady()) {
+                    // Ran dry mid-song rather than buffering after a seek or song change
+                    readySinceLastSeek = false;
+                    bandwidthGovernor.onRebuffer();
+                }
                 if (playbackState == Player.STATE_ENDED) next();
                 if (playbackListener != null) playbackListener.onPlaybackStateChanged(player.isPlaying());
             }
             @Override
+            public void onPlayWhenReadyChanged(boolean playWhenReady, int reason) {
+                applyPlaybackReservation();
+            }
+            @Override
+            public void onIsLoadingChanged(boolean isLoading) {
+                applyPlaybackReservation();
+            }
+            @Override
+            public void onPlayerError(PlaybackException error) {
+                retryStreamOnNextMirror(error);
+            }
+            @Override
+            public void onPositionDiscontinuity(Player.PositionInfo oldPosition, Player.PositionInfo newPosition, int reason) {
+                if (reason == Player.DISCONTINUITY_REASON_SEEK) readySinceLastSeek = false;
+            }
+            @Override
             public void onIsPlayingChanged(boolean isPlaying) {
                 if (playbackListener != null) playbackListener.onPlaybackStateChanged(isPlaying);
+                handler.removeCallbacks(positionSaver);
+                if (isPlaying) handler.postDelayed(positionSaver, POSITION_SAVE_INTERVAL_MS);
+                else savePlaybackPosition();
                 updateNotification();
             }
         });
@@ -126,10 +249,49 @@ public class MusicService extends Service {
         this.playbackListener = listener;
     }
 
+    public void setDownloadProgressListener(DownloadProgressListener listener) {
+        this.downloadProgressListener = listener;
+    }
+
+    // Rebuffer count and per-class throughput
+    public BandwidthGovernor getBandwidthGovernor() {
+        return bandwidthGovernor;
+    }
+
+    // Bytes saved by caching smaller renditions
+    public QualitySelector getQualitySelector() {
+        return qualitySelector;
+    }
+
+    // Counts network bytes of the playing stream so the governor sees the whole link
+    private class PlaybackTransferListener implements TransferListener {
+        @Override
+        public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+        @Override
+        public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+        @Override
+        public void onBytesTransferred(DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+            if (isNetwork) bandwidthGovernor.recordBytes(BandwidthGovernor.TransferClass.PLAYBACK, bytesTransferred);
+        }
+        @Override
+        public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+    }
+
     // CHANGED: Simply sets the list, does NOT trigger auto-download
     public void setPlaylist(List<Song> songs) {
-        this.playlist = new ArrayList<>(songs);
+        this.playlist = new CopyOnWriteArrayList<>(songs);
         // We do NOT cache all songs anymore
+        journal.recordClear();
+        for (Song song : playlist) journal.recordAdd(song);
+        evictTempFiles();
+    }
+
+    // Empties the playlist and its journal, and deletes the songs' temp files
+    public void clearPlaylist() {
+        stop();
+        setPlaylist(Collections.<Song>emptyList());
+        stopForeground(true);
+        Log.i(TAG, "Playlist cleared");
     }
 
     public List<Song> getPlaylist() {
@@ -138,109 +300,364 @@ public class MusicService extends Service {
 
     // NEW METHOD: Adds a single song to playlist and downloads it
     public void addToPlaylist(Song song) {
-        if (playlist == null) playlist = new ArrayList<>();
+        if (playlist == null) playlist = new CopyOnWriteArrayList<>();
         
         // Add to list
         playlist.add(song);
+        journal.recordAdd(song);
         
         // Trigger download for just this song
-        if (song.isUriBased() && !song.isCached()) {
-            downloadExecutor.execute(() -> {
+        queueDownload(song);
+    }
+
+    // Adds several songs in one go and downloads them as a single batch
+    public void addAllToPlaylist(List<Song> songs) {
+        if (playlist == null) playlist = new CopyOnWriteArrayList<>();
+
+        playlist.addAll(songs);
+        for (Song song : songs) journal.recordAdd(song);
+
+        queueDownloads(songs, BandwidthGovernor.TransferClass.BULK);
+    }
+
+    private void queueDownload(Song song) {
+        queueDownloads(Collections.singletonList(song), BandwidthGovernor.TransferClass.PREFETCH);
+    }
+
+    // One task per batch, so consecutive songs reuse the same keep-alive connection
+    private void queueDownloads(List<Song> songs, BandwidthGovernor.TransferClass transferClass) {
+        final List<Song> pending = new ArrayList<>();
+        for (Song song : songs) {
+            if (song.isUriBased() && !hasCachedCopy(song)) pending.add(song);
+        }
+        if (pending.isEmpty()) return;
+
+        final DownloadBatch batch = new DownloadBatch(pending.size(), transferClass);
+        downloadExecutor.execute(() -> {
+            for (Song song : pending) {
+                // Skip songs removed by clearPlaylist() while the batch was waiting
+                if (!playlist.contains(song)) {
+                    batch.onSongFinished();
+                    continue;
+                }
                 try {
-                    downloadAndCacheSong(song);
+                    downloadAndCacheSong(song, batch);
                 } catch (Exception e) {
                     Log.e(TAG, "Error caching song: " + song.getTitle(), e);
                 }
-            });
+                batch.onSongFinished();
+                reportProgress(batch);
+            }
+            scheduleUpgrades();
+        });
+    }
+
+    // RAM copy, or a temp file restored from the journal
+    private boolean hasCachedCopy(Song song) {
+        if (song.isCached()) return true;
+        File tempFile = tempFileCache.get(song.getPath());
+        return tempFile != null && tempFile.exists();
+    }
+
+    private long cachedCopySize(Song song) {
+        byte[] data = song.getCachedData();
+        if (data != null) return data.length;
+        File tempFile = tempFileCache.get(song.getPath());
+        return tempFile != null ? tempFile.length() : 0;
+    }
+
+    // Queued behind other downloads: re-fetches downgraded songs whose better rendition now fits
+    private void scheduleUpgrades() {
+        if (!upgradeQueued.compareAndSet(false, true)) return;
+        downloadExecutor.execute(() -> {
+            upgradeQueued.set(false);
+            for (Song song : playlist) {
+                Rendition cached = song.getCachedRendition();
+                if (!hasCachedCopy(song) || cached == null || song == getCurrentSong()) continue;
+                Rendition target = chooseRendition(song);
+                if (target == null || !target.isBetterThan(cached)) continue;
+                try {
+                    upgradeSong(song, cached, target);
+                } catch (Exception e) {
+                    Log.w(TAG, "Could not upgrade " + song.getTitle(), e);
+                }
+            }
+        });
+    }
+
+    private void upgradeSong(Song song, Rendition cached, Rendition target) throws Exception {
+        CachedCopy copy = fetchRendition(song, target, new DownloadBatch(1, BandwidthGovernor.TransferClass.BULK));
+        // Keep the old copy if the song started playing from it meanwhile
+        if (copy == null || !hasCachedCopy(song) || song == getCurrentSong()) return;
+        long previousBytes = cachedCopySize(song);
+        storeCachedCopy(song, target, copy);
+        qualitySelector.recordUpgrade(song, cached, previousBytes, target, copy.data.length);
+    }
+
+    // Best rendition that fits the cache budget, RAM headroom and link speed right now; null if none does
+    private Rendition chooseRendition(Song song) {
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        ((ActivityManager) getSystemService(ACTIVITY_SERVICE)).getMemoryInfo(memoryInfo);
+        long cachedBytes = 0;
+        for (Song cachedSong : playlist) cachedBytes += cachedCopySize(cachedSong);
+        return qualitySelector.choose(song.getRenditions(), cachedBytes,
+                memoryInfo.availMem - memoryInfo.threshold, bandwidthGovernor.getLinkBytesPerSec());
+    }
+
+    // A stream takes no cache space, so a song too big to cache still plays, in its smallest rendition
+    private Rendition streamRendition(Song song) {
+        Rendition rendition = chooseRendition(song);
+        return rendition != null ? rendition : QualitySelector.smallest(song.getRenditions());
+    }
+
+    private void reportProgress(DownloadBatch batch) {
+        DownloadProgressListener listener = downloadProgressListener;
+        if (listener == null || !batch.shouldReport()) return;
+        listener.onDownloadProgress(batch.getSongsDone(), batch.getSongsTotal(),
+                batch.getBytesDone(), batch.getBytesExpected(), batch.getEtaMs());
+    }
+
+    private void downloadAndCacheSong(Song song, DownloadBatch batch) throws Exception {
+        Rendition rendition = chooseRendition(song);
+        if (rendition == null) {
+            Log.i(TAG, "No rendition of " + song.getTitle() + " fits the cache, it will stream");
+            return;
         }
+        CachedCopy copy = fetchRendition(song, rendition, batch);
+        if (copy == null || !playlist.contains(song)) return;
+        storeCachedCopy(song, rendition, copy);
+        qualitySelector.recordDownload(song, rendition, copy.data.length);
     }
 
-    // Same download logic as before
-    private void downloadAndCacheSong(Song song) throws Exception {
-        Uri uri = song.getUri();
-        String uriString = uri.toString();
+    private static class CachedCopy {
+        final byte[] data;
+        final SeekIndex seekIndex;
+
+        CachedCopy(byte[] data, SeekIndex seekIndex) {
+            this.data = data;
+            this.seekIndex = seekIndex;
+        }
+    }
+
+    // Hands out its array without the copy toByteArray() makes when it was sized exactly
+    private static class DownloadBuffer extends ByteArrayOutputStream {
+        DownloadBuffer(int size) {
+            super(size);
+        }
+
+        byte[] takeBytes() {
+            return count == buf.length ? buf : toByteArray();
+        }
+    }
+
+    // Same download logic as before; returns null for songs that are not fetched over http
+    private CachedCopy fetchRendition(Song song, Rendition rendition, DownloadBatch batch) throws Exception {
+        String uriString = rendition.getUri().toString();
         
-        if (!uriString.startsWith("http://") && !uriString.startsWith("https://")) return;
+        if (!uriString.startsWith("http://") && !uriString.startsWith("https://")) return null;
         
-        Log.i(TAG, "Downloading song to RAM: " + song.getTitle());
+        Log.i(TAG, "Downloading song to RAM: " + song.getTitle() + " (" + rendition.getFormat() + ")");
         
-        URL url = new URL(uriString);
-        HttpURLConnection connection = null;
+        // Routed to the fastest healthy mirror, hedged against the next one if it is slow to answer
+        MirrorPool.Response response = mirrorPool.openHedged(uriString, rendition.getMirrors(), 30000);
+        HttpURLConnection connection = response.connection;
         InputStream inputStream = null;
-        ByteArrayOutputStream outputStream = null;
+        DownloadBuffer outputStream = null;
+        boolean reusable = false;
         
         try {
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(30000);
-            connection.setReadTimeout(30000);
-            
             inputStream = connection.getInputStream();
-            outputStream = new ByteArrayOutputStream();
+            long contentLength = connection.getContentLength();
+            batch.onSongStarted(contentLength);
+            final long MAX_SIZE = QualitySelector.MAX_TRACK_BYTES;
+            // Pre-size from Content-Length to avoid repeated buffer growth on large files
+            outputStream = new DownloadBuffer(contentLength > 0 && contentLength <= MAX_SIZE ? (int) contentLength : 32);
             
+            // Frame offsets are indexed as the bytes arrive, so seeks in the cached copy are exact
+            SeekIndexBuilder indexBuilder = SeekIndexBuilder.forFormat(rendition.getFormat());
             byte[] buffer = new byte[8192];
             int bytesRead;
             long totalBytes = 0;
-            final long MAX_SIZE = 100 * 1024 * 1024; 
+            long throttledNs = 0;
             
             while ((bytesRead = inputStream.read(buffer)) != -1) {
                 totalBytes += bytesRead;
                 if (totalBytes > MAX_SIZE) {
                     Log.w(TAG, "Song too large: " + song.getTitle());
-                    return;
+                    return null;
                 }
                 outputStream.write(buffer, 0, bytesRead);
+                if (indexBuilder != null) indexBuilder.feed(buffer, bytesRead);
+                batch.onBytes(bytesRead);
+                reportProgress(batch);
+                bandwidthGovernor.recordBytes(batch.getTransferClass(), bytesRead);
+                long waitStart = System.nanoTime();
+                bandwidthGovernor.acquire(batch.getTransferClass(), bytesRead);
+                throttledNs += System.nanoTime() - waitStart;
             }
+            reusable = true;
+            response.finished(totalBytes, throttledNs / 1000000);
+            return new CachedCopy(outputStream.takeBytes(), indexBuilder != null ? indexBuilder.build() : null);
             
-            byte[] songData = outputStream.toByteArray();
-            song.setCachedData(songData);
-            Log.i(TAG, "Cached " + songData.length + " bytes for: " + song.getTitle());
-            
+        } catch (InterruptedException e) {
+            // Interrupted while throttled, e.g. on shutdown; not the mirror's fault
+            throw e;
+        } catch (Exception e) {
+            response.failed();
+            throw e;
         } finally {
             if (inputStream != null) inputStream.close();
             if (outputStream != null) outputStream.close();
-            if (connection != null) connection.disconnect();
+            // A fully read response goes back to the keep-alive pool for the next song
+            if (!reusable) connection.disconnect();
         }
     }
 
+    // Makes the downloaded bytes the song's cached copy, replacing any previous rendition's temp file
+    private void storeCachedCopy(Song song, Rendition rendition, CachedCopy copy) throws Exception {
+        File previous = tempFileCache.remove(song.getPath());
+        song.setSeekIndex(copy.seekIndex);
+        song.setCachedRendition(rendition);
+        song.setCachedData(copy.data);
+        Log.i(TAG, "Cached " + copy.data.length + " bytes for: " + song.getTitle()
+                + (copy.seekIndex != null ? " (" + copy.seekIndex.getPointCount() + " seek points)" : ""));
+
+        // Spill to the temp file now so the journal can point at it after a restart
+        journal.recordCache(song, createTempFileFromCache(song));
+        deleteTempFile(previous);
+        // Playback reads the temp file, so the heap copy is not kept; a bulk add would not fit otherwise
+        song.setCachedData(null);
+    }
+
     public void playSong(int position) {
         if (position < 0 || position >= playlist.size()) return;
 
         currentPosition = position;
         Song song = playlist.get(position);
+        
+        // Reset first: setMediaSource reports BUFFERING right away, which is not a rebuffer
+        readySinceLastSeek = false;
+        failedStreamMirrors.clear();
+        player.setMediaSource(buildMediaSource(song));
+        updatePlaybackReservation(song);
+        player.prepare();
+        player.play();
+        journal.recordPosition(position, 0);
+
+        if (playbackListener != null) playbackListener.onSongChanged(song, position);
+        startForeground(NOTIFICATION_ID, createNotification());
+        // The song that was playing may now be upgraded
+        scheduleUpgrades();
+    }
+
+    // Songs that will be read from the network rather than a cached file
+    private boolean isStreaming(Song song) {
+        File restoredFile = tempFileCache.get(song.getPath());
+        return song.isUriBased() && !song.isCached() && (restoredFile == null || !restoredFile.exists());
+    }
+
+    // Called on each song change. Until the player reports the real bitrate, assume the listed or a typical one for the format
+    private void updatePlaybackReservation(Song song) {
+        bandwidthGovernor.onSongChanged();
+        streamBitrate = isStreaming(song) ? streamRendition(song).getNominalBitrate() : 0;
+        applyPlaybackReservation();
+    }
+
+    // The stream only holds its reservation while it plays and still has bytes left to load
+    private void applyPlaybackReservation() {
+        boolean usesLink = player != null && player.getPlayWhenReady() && !isFullyBuffered();
+        bandwidthGovernor.setPlaybackBitrate(usesLink ? streamBitrate : 0);
+    }
+
+    private boolean isFullyBuffered() {
+        long duration = player.getDuration();
+        return duration != C.TIME_UNSET && player.getBufferedPosition() >= duration;
+    }
+
+    // Cached MP3s seek through their prebuilt index; FLAC carries its index as an embedded SEEKTABLE
+    private MediaSource buildMediaSource(Song song) {
+        MediaItem mediaItem = buildMediaItem(song);
+        SeekIndex seekIndex = song.getSeekIndex();
+        boolean playsFromFile = mediaItem.localConfiguration != null
+                && "file".equals(mediaItem.localConfiguration.uri.getScheme());
+        if (seekIndex != null && playsFromFile && "MP3".equals(song.getCachedFormat())) {
+            return new ProgressiveMediaSource.Factory(dataSourceFactory,
+                    () -> new Extractor[]{new IndexedExtractor(new Mp3Extractor(), seekIndex)})
+                    .createMediaSource(mediaItem);
+        }
+        return new DefaultMediaSourceFactory(dataSourceFactory).createMediaSource(mediaItem);
+    }
+
+    private MediaItem buildMediaItem(Song song) {
+        streamingRendition = null;
         MediaItem mediaItem;
+        File restoredFile = tempFileCache.get(song.getPath());
         
-        if (song.isCached()) {
+        if (restoredFile != null && restoredFile.exists()) {
+            mediaItem = MediaItem.fromUri(Uri.fromFile(restoredFile));
+            Log.i(TAG, "Playing from cache file: " + song.getTitle());
+        } else if (song.isCached()) {
             try {
                 File tempFile = createTempFileFromCache(song);
                 mediaItem = MediaItem.fromUri(Uri.fromFile(tempFile));
                 Log.i(TAG, "Playing from cache: " + song.getTitle());
             } catch (Exception e) {
-                mediaItem = MediaItem.fromUri(song.getUri());
+                mediaItem = MediaItem.fromUri(streamUrl(streamRendition(song)));
             }
         } else if (song.isUriBased()) {
-             // Stream if not cached
-            mediaItem = MediaItem.fromUri(song.getUri());
+             // Stream if not cached, in the rendition the link and RAM allow, from whichever mirror currently scores best
+            mediaItem = MediaItem.fromUri(streamUrl(streamRendition(song)));
         } else {
             mediaItem = MediaItem.fromUri(Uri.fromFile(song.getFile()));
         }
-        
-        player.setMediaItem(mediaItem);
-        player.prepare();
-        player.play();
+        return mediaItem;
+    }
 
-        if (playbackListener != null) playbackListener.onSongChanged(song, position);
-        startForeground(NOTIFICATION_ID, createNotification());
+    // Best mirror that listed the rendition and has not failed on the current song
+    private String streamUrl(Rendition rendition) {
+        streamingRendition = rendition;
+        String url = mirrorPool.bestUrl(rendition.getUri().toString(), rendition.getMirrors(), failedStreamMirrors);
+        return url != null ? url : rendition.getUri().toString();
+    }
+
+    // A stream that fails on one mirror resumes where it stopped on the next one that has the file
+    private void retryStreamOnNextMirror(PlaybackException error) {
+        Song song = getCurrentSong();
+        MediaItem item = player.getCurrentMediaItem();
+        if (song == null || streamingRendition == null || item == null || item.localConfiguration == null) return;
+        MirrorPool.Mirror mirror = mirrorPool.findMirror(item.localConfiguration.uri.toString());
+        if (mirror == null || !failedStreamMirrors.add(mirror.getBaseUrl())) return;
+
+        // A 4xx only means this mirror lacks the file, so it stays healthy
+        Throwable cause = error.getCause();
+        int code = cause instanceof HttpDataSource.InvalidResponseCodeException
+                ? ((HttpDataSource.InvalidResponseCodeException) cause).responseCode : 0;
+        if (code < 400 || code >= 500) mirror.recordFailure();
+
+        if (mirrorPool.bestUrl(streamingRendition.getUri().toString(), streamingRendition.getMirrors(), failedStreamMirrors) == null) {
+            Log.w(TAG, "No mirror left to stream " + song.getTitle(), error);
+            return;
+        }
+        long positionMs = player.getCurrentPosition();
+        readySinceLastSeek = false;
+        player.setMediaSource(buildMediaSource(song), positionMs);
+        player.prepare();
+        Log.i(TAG, "Stream of " + song.getTitle() + " failed on " + mirror.getBaseUrl() + ", retrying on the next mirror");
     }
 
     // ... Play/Pause/Stop/Next/Previous methods (Same as before) ...
     public void play() { if (player != null) player.play(); }
     public void pause() { if (player != null) player.pause(); }
-    public void stop() { if (player != null) player.stop(); currentPosition = -1; }
+    public void stop() { if (player != null) player.stop(); currentPosition = -1; streamBitrate = 0; applyPlaybackReservation(); }
     public void next() { if (currentPosition < playlist.size() - 1) playSong(currentPosition + 1); }
     public void previous() { if (currentPosition > 0) playSong(currentPosition - 1); }
     public boolean isPlaying() { return player != null && player.isPlaying(); }
-    public Song getCurrentSong() { return (currentPosition >= 0 && currentPosition < playlist.size()) ? playlist.get(currentPosition) : null; }
+    // Also called from the download thread, so both fields are read once
+    public Song getCurrentSong() {
+        List<Song> songs = playlist;
+        int position = currentPosition;
+        return (position >= 0 && position < songs.size()) ? songs.get(position) : null;
+    }
 
     private File createTempFileFromCache(Song song) throws Exception {
         String key = song.getPath();
@@ -248,25 +665,60 @@ public class MusicService extends Service {
             File existingFile = tempFileCache.get(key);
             if (existingFile != null && existingFile.exists()) return existingFile;
         }
-        String extension = song.getFormat().toLowerCase();
-        File tempFile = File.createTempFile("droidman_", "." + extension, getCacheDir());
+        String extension = song.getCachedFormat().toLowerCase();
+        File tempFile = File.createTempFile(TEMP_FILE_PREFIX, "." + extension, getCacheDir());
+        SeekIndex seekIndex = song.getSeekIndex();
         try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-            fos.write(song.getCachedData());
+            if (seekIndex != null && "FLAC".equals(song.getCachedFormat())) {
+                seekIndex.writeFlacWithSeekTable(fos, song.getCachedData());
+            } else {
+                fos.write(song.getCachedData());
+            }
+        }
+        if (seekIndex != null && "MP3".equals(song.getCachedFormat())) {
+            seekIndex.writeTo(SeekIndex.sidecarFor(tempFile));
         }
         tempFileCache.put(key, tempFile);
         return tempFile;
     }
 
+    // Frees the RAM copies; temp files stay, since the journal points at them for the next launch
     private void clearAllCaches() {
         if (playlist != null) {
             for (Song song : playlist) song.clearCache();
         }
-        for (File tempFile : tempFileCache.values()) {
-            if (tempFile != null && tempFile.exists()) tempFile.delete();
-        }
-        tempFileCache.clear();
         Log.i(TAG, "All caches cleared");
     }
+
+    // Deletes temp files (and seek index sidecars) of songs that are no longer in the playlist
+    private void evictTempFiles() {
+        Set<String> keep = new HashSet<>();
+        for (Song song : playlist) keep.add(song.getPath());
+        for (Map.Entry<String, File> entry : tempFileCache.entrySet()) {
+            if (keep.contains(entry.getKey())) continue;
+            tempFileCache.remove(entry.getKey());
+            deleteTempFile(entry.getValue());
+        }
+    }
+
+    // Temp files the journal no longer points at, e.g. left behind by a process kill mid-download
+    private void deleteOrphanedTempFiles() {
+        Set<File> keep = new HashSet<>(tempFileCache.values());
+        File[] files = getCacheDir().listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().startsWith(TEMP_FILE_PREFIX) && !file.getName().endsWith(SeekIndex.SIDECAR_SUFFIX)
+                    && !keep.contains(file)) {
+                deleteTempFile(file);
+            }
+        }
+    }
+
+    private static void deleteTempFile(File tempFile) {
+        if (tempFile == null) return;
+        tempFile.delete();
+        SeekIndex.sidecarFor(tempFile).delete();
+    }
     
     // ... Notification methods (Same as before) ...
     private void createNotificationChannel() {
@@ -323,6 +775,9 @@ public class MusicService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        handler.removeCallbacks(positionSaver);
+        savePlaybackPosition();
+        journal.close();
         if (notificationActionReceiver != null) unregisterReceiver(notificationActionReceiver);
         if (player != null) { player.release(); player = null; }
         clearAllCaches();
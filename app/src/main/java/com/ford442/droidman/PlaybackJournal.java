@@ -0,0 +1,327 @@
+package com.ford442.droidman;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-only binary journal of the RAM playlist and playback state.
+ * Every change is written as a small record on a background thread, so a
+ * killed process can rebuild its playlist, cache locations and seek position
+ * on the next launch by replaying the file.
+ */
+public class PlaybackJournal {
+
+    private static final String TAG = "PlaybackJournal";
+    private static final String FILE_NAME = "playback.journal";
+    private static final int MAGIC = 0x444D4A31; // "DMJ1"
+
+    private static final byte OP_CLEAR = 1;
+    private static final byte OP_ADD = 2;
+    private static final byte OP_CACHE = 3;
+    private static final byte OP_POSITION = 4;
+
+    // Rewrite the journal as a snapshot once it grows past this size
+    private static final long COMPACT_THRESHOLD = 64 * 1024;
+
+    private final File file;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final Snapshot state = new Snapshot();
+    private DataOutputStream out;
+
+    public static class Entry {
+        final boolean uriBased;
+        final String path;
+        final String title;
+        final List<Rendition> renditions;
+        String cachePath;
+        long cacheLength;
+        String cacheRenditionUri = ""; // Rendition the cache file was downloaded from, empty if not known
+
+        Entry(boolean uriBased, String path, String title, List<Rendition> renditions) {
+            this.uriBased = uriBased;
+            this.path = path;
+            this.title = title;
+            this.renditions = renditions;
+        }
+
+        public Song toSong() {
+            if (!uriBased) return new Song(new File(path));
+            Song song = new Song(Uri.parse(path), title);
+            if (!renditions.isEmpty()) song.setRenditions(renditions);
+            return song;
+        }
+
+        // Returns the cached file only if it survived with the length we recorded
+        public File getValidCacheFile() {
+            if (cachePath == null) return null;
+            File cached = new File(cachePath);
+            return cached.isFile() && cached.length() == cacheLength ? cached : null;
+        }
+
+        // The journaled rendition held by the cache file, or null for the song's own format
+        public Rendition getCachedRendition() {
+            for (Rendition rendition : renditions) {
+                if (rendition.getUri().toString().equals(cacheRenditionUri)) return rendition;
+            }
+            return null;
+        }
+    }
+
+    public static class Snapshot {
+        public final List<Entry> entries = new ArrayList<>();
+        public int currentIndex = -1;
+        public long positionMs = 0;
+    }
+
+    public PlaybackJournal(File dir) {
+        this.file = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Replays the journal synchronously and returns the restored state.
+     * A torn record at the tail (process killed mid-write) is dropped.
+     * Must be called once, before any record* method.
+     */
+    public Snapshot restore() {
+        Snapshot restored = new Snapshot();
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() == MAGIC) {
+                    while (true) {
+                        byte op = in.readByte();
+                        if (!readRecord(op, in, restored)) break;
+                    }
+                }
+            } catch (EOFException e) {
+                // End of journal or truncated tail record
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read playback journal", e);
+            }
+        }
+        copy(restored, state);
+        // Rewriting drops any torn tail and replayed history before new appends
+        writer.execute(this::compact);
+        Log.i(TAG, "Restored " + restored.entries.size() + " entries, index " + restored.currentIndex);
+        return restored;
+    }
+
+    public void recordClear() {
+        writer.execute(() -> {
+            apply(OP_CLEAR, null, -1, 0, state);
+            append(OP_CLEAR, null, -1, 0);
+        });
+    }
+
+    public void recordAdd(Song song) {
+        final Entry entry = new Entry(song.isUriBased(), song.getPath(), song.getTitle(), song.getRenditions());
+        writer.execute(() -> {
+            apply(OP_ADD, entry, -1, 0, state);
+            append(OP_ADD, entry, -1, 0);
+        });
+    }
+
+    public void recordCache(Song song, File cacheFile) {
+        final Entry entry = new Entry(song.isUriBased(), song.getPath(), song.getTitle(), Collections.<Rendition>emptyList());
+        entry.cachePath = cacheFile.getAbsolutePath();
+        entry.cacheLength = cacheFile.length();
+        if (song.getCachedRendition() != null) entry.cacheRenditionUri = song.getCachedRendition().getUri().toString();
+        writer.execute(() -> {
+            apply(OP_CACHE, entry, -1, 0, state);
+            append(OP_CACHE, entry, -1, 0);
+        });
+    }
+
+    public void recordPosition(int index, long positionMs) {
+        writer.execute(() -> {
+            apply(OP_POSITION, null, index, positionMs, state);
+            append(OP_POSITION, null, index, positionMs);
+        });
+    }
+
+    public void close() {
+        writer.execute(this::closeOutput);
+        writer.shutdown();
+    }
+
+    private boolean readRecord(byte op, DataInputStream in, Snapshot target) throws IOException {
+        switch (op) {
+            case OP_CLEAR:
+                apply(op, null, -1, 0, target);
+                return true;
+            case OP_ADD: {
+                boolean uriBased = in.readBoolean();
+                String path = in.readUTF();
+                String title = in.readUTF();
+                apply(op, new Entry(uriBased, path, title, readRenditions(in)), -1, 0, target);
+                return true;
+            }
+            case OP_CACHE: {
+                Entry entry = new Entry(true, in.readUTF(), null, Collections.<Rendition>emptyList());
+                entry.cachePath = in.readUTF();
+                entry.cacheLength = in.readLong();
+                entry.cacheRenditionUri = in.readUTF();
+                apply(op, entry, -1, 0, target);
+                return true;
+            }
+            case OP_POSITION:
+                int index = in.readInt();
+                apply(op, null, index, in.readLong(), target);
+                return true;
+            default:
+                Log.w(TAG, "Unknown journal record " + op + ", ignoring the rest");
+                return false;
+        }
+    }
+
+    private static void apply(byte op, Entry entry, int index, long positionMs, Snapshot target) {
+        switch (op) {
+            case OP_CLEAR:
+                target.entries.clear();
+                target.currentIndex = -1;
+                target.positionMs = 0;
+                break;
+            case OP_ADD:
+                target.entries.add(entry);
+                break;
+            case OP_CACHE:
+                for (Entry existing : target.entries) {
+                    if (existing.path.equals(entry.path)) {
+                        existing.cachePath = entry.cachePath;
+                        existing.cacheLength = entry.cacheLength;
+                        existing.cacheRenditionUri = entry.cacheRenditionUri;
+                    }
+                }
+                break;
+            case OP_POSITION:
+                target.currentIndex = index;
+                target.positionMs = positionMs;
+                break;
+        }
+    }
+
+    private void append(byte op, Entry entry, int index, long positionMs) {
+        try {
+            if (out == null) openOutput();
+            writeRecord(out, op, entry, index, positionMs);
+            out.flush();
+            if (file.length() > COMPACT_THRESHOLD) compact();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not append to playback journal", e);
+            closeOutput();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream stream, byte op, Entry entry, int index, long positionMs) throws IOException {
+        stream.writeByte(op);
+        switch (op) {
+            case OP_ADD:
+                stream.writeBoolean(entry.uriBased);
+                stream.writeUTF(entry.path);
+                stream.writeUTF(entry.title);
+                writeRenditions(stream, entry.renditions);
+                break;
+            case OP_CACHE:
+                stream.writeUTF(entry.path);
+                stream.writeUTF(entry.cachePath);
+                stream.writeLong(entry.cacheLength);
+                stream.writeUTF(entry.cacheRenditionUri);
+                break;
+            case OP_POSITION:
+                stream.writeInt(index);
+                stream.writeLong(positionMs);
+                break;
+        }
+    }
+
+    private static void writeRenditions(DataOutputStream stream, List<Rendition> renditions) throws IOException {
+        stream.writeInt(renditions.size());
+        for (Rendition rendition : renditions) {
+            stream.writeUTF(rendition.getUri().toString());
+            stream.writeUTF(rendition.getFormat());
+            stream.writeInt(rendition.getBitrate());
+            stream.writeLong(rendition.getSize());
+            stream.writeInt(rendition.getMirrors().size());
+            for (String mirror : rendition.getMirrors()) stream.writeUTF(mirror);
+        }
+    }
+
+    private static List<Rendition> readRenditions(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Rendition> renditions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Rendition rendition = new Rendition(Uri.parse(in.readUTF()), in.readUTF(), in.readInt(), in.readLong());
+            int mirrorCount = in.readInt();
+            List<String> mirrors = new ArrayList<>(mirrorCount);
+            for (int j = 0; j < mirrorCount; j++) mirrors.add(in.readUTF());
+            rendition.addMirrors(mirrors);
+            renditions.add(rendition);
+        }
+        return renditions;
+    }
+
+    // Writes the current state as a fresh journal and atomically swaps it in
+    private void compact() {
+        closeOutput();
+        File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        try (DataOutputStream snapshot = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            snapshot.writeInt(MAGIC);
+            for (Entry entry : state.entries) {
+                writeRecord(snapshot, OP_ADD, entry, -1, 0);
+                if (entry.cachePath != null) writeRecord(snapshot, OP_CACHE, entry, -1, 0);
+            }
+            writeRecord(snapshot, OP_POSITION, null, state.currentIndex, state.positionMs);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compact playback journal", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Could not replace playback journal");
+            tmp.delete();
+        }
+    }
+
+    private void openOutput() throws IOException {
+        boolean fresh = !file.exists() || file.length() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !fresh)));
+        if (fresh) out.writeInt(MAGIC);
+    }
+
+    private void closeOutput() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close playback journal", e);
+        }
+        out = null;
+    }
+
+    private static void copy(Snapshot from, Snapshot to) {
+        to.entries.clear();
+        for (Entry entry : from.entries) {
+            Entry clone = new Entry(entry.uriBased, entry.path, entry.title, entry.renditions);
+            clone.cachePath = entry.cachePath;
+            clone.cacheLength = entry.cacheLength;
+            clone.cacheRenditionUri = entry.cacheRenditionUri;
+            to.entries.add(clone);
+        }
+        to.currentIndex = from.currentIndex;
+        to.positionMs = from.positionMs;
+    }
+}
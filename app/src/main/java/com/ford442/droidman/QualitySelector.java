@@ -0,0 +1,100 @@
+package com.ford442.droidman;
+
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Picks which rendition of a track to fetch. The best one is taken when it fits in
+ * what is left of the cache budget, in a share of the free RAM and downloads in
+ * reasonable time at the measured link speed; otherwise the best one that does.
+ * When none does the song is not cached at all and only streams. Keeps a running
+ * total of the bytes saved.
+ */
+public class QualitySelector {
+
+    private static final String TAG = "QualitySelector";
+
+    // Same per-song cap as the download loop
+    public static final long MAX_TRACK_BYTES = 100 * 1024 * 1024;
+    // Cached songs (their temp files) may use at most this much in total
+    private static final long CACHE_BUDGET_BYTES = 512L * 1024 * 1024;
+    // One song may take at most this share of the RAM above the low-memory threshold
+    private static final int HEADROOM_SHARE = 4;
+    // A rendition that would take longer than this to fetch is too big for the link
+    private static final long MAX_FETCH_SEC = 90;
+
+    private long bytesSaved = 0;
+    private int downgrades = 0;
+    private int upgrades = 0;
+
+    /**
+     * @param cacheUsedBytes   bytes of songs already cached
+     * @param ramHeadroomBytes available RAM minus the low-memory threshold
+     * @param linkBytesPerSec  measured link speed, or 0 if not known yet
+     * @return the rendition to cache, or null if even the smallest is over the allowance
+     */
+    public Rendition choose(List<Rendition> renditions, long cacheUsedBytes, long ramHeadroomBytes, long linkBytesPerSec) {
+        long allowance = Math.min(Math.min(CACHE_BUDGET_BYTES - cacheUsedBytes, ramHeadroomBytes / HEADROOM_SHARE), MAX_TRACK_BYTES);
+        if (linkBytesPerSec > 0) allowance = Math.min(allowance, linkBytesPerSec * MAX_FETCH_SEC);
+
+        Rendition chosen = null;
+        for (Rendition rendition : renditions) {
+            long size = rendition.estimateSize(renditions);
+            if (size <= allowance && (chosen == null || rendition.isBetterThan(chosen))) chosen = rendition;
+        }
+        return chosen;
+    }
+
+    public static Rendition best(List<Rendition> renditions) {
+        Rendition best = null;
+        for (Rendition rendition : renditions) {
+            if (best == null || rendition.isBetterThan(best)) best = rendition;
+        }
+        return best;
+    }
+
+    public static Rendition smallest(List<Rendition> renditions) {
+        Rendition smallest = null;
+        long smallestSize = Long.MAX_VALUE;
+        for (Rendition rendition : renditions) {
+            long size = rendition.estimateSize(renditions);
+            if (size < smallestSize) {
+                smallest = rendition;
+                smallestSize = size;
+            }
+        }
+        return smallest;
+    }
+
+    // Called once a song is cached; a rendition below the best counts the difference as saved
+    public synchronized void recordDownload(Song song, Rendition rendition, long bytes) {
+        Rendition best = best(song.getRenditions());
+        if (best == null || best == rendition) return;
+        long saved = Math.max(0, best.estimateSize(song.getRenditions()) - bytes);
+        bytesSaved += saved;
+        downgrades++;
+        Log.i(TAG, "Cached " + song.getTitle() + " as " + rendition.getFormat() + " " + rendition.getNominalBitrate() / 1000
+                + " kbps instead of " + best.getFormat() + ", saved ~" + saved + " bytes (" + bytesSaved + " total)");
+    }
+
+    // Called when a downgraded song is replaced by a better rendition; gives back what it had saved
+    public synchronized void recordUpgrade(Song song, Rendition from, long fromBytes, Rendition to, long toBytes) {
+        bytesSaved = Math.max(0, bytesSaved - Math.max(0, toBytes - fromBytes));
+        upgrades++;
+        Log.i(TAG, "Upgraded " + song.getTitle() + " from " + from.getFormat() + " to " + to.getFormat()
+                + " (" + fromBytes + " -> " + toBytes + " bytes)");
+    }
+
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    public synchronized int getDowngrades() {
+        return downgrades;
+    }
+
+    public synchronized int getUpgrades() {
+        return upgrades;
+    }
+}
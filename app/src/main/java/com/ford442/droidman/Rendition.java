@@ -0,0 +1,98 @@
+package com.ford442.droidman;
+
+import android.net.Uri;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * One encoding of a track offered by the catalog, e.g. the original FLAC and
+ * an MP3 or Opus sibling. Bitrate and size are 0 when the listing did not say.
+ * Also remembers which mirrors listed the file, since replicas can differ.
+ */
+public class Rendition {
+
+    // Used to estimate sizes when the listing gives none
+    private static final long ASSUMED_DURATION_SEC = 240;
+
+    private final Uri uri;
+    private final String format;
+    private final int bitrate; // bits per second
+    private final long size;
+    private final Set<String> mirrors = new CopyOnWriteArraySet<>(); // Base URLs; empty if unknown
+
+    public Rendition(Uri uri, String format, int bitrate, long size) {
+        this.uri = uri;
+        this.format = format;
+        this.bitrate = bitrate;
+        this.size = size;
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Set<String> getMirrors() {
+        return Collections.unmodifiableSet(mirrors);
+    }
+
+    public void addMirrors(Collection<String> baseUrls) {
+        mirrors.addAll(baseUrls);
+    }
+
+    public boolean isLossless() {
+        return "FLAC".equals(format) || "WAV".equals(format);
+    }
+
+    // Listed bitrate, or a typical one for the format
+    public int getNominalBitrate() {
+        if (bitrate > 0) return bitrate;
+        switch (format) {
+            case "WAV": return 1411200;
+            case "FLAC": return 1100000;
+            case "MP3": return 320000;
+            case "OPUS": return 128000;
+            default: return 192000;
+        }
+    }
+
+    // Lossless always ranks above lossy, then higher bitrate wins
+    public boolean isBetterThan(Rendition other) {
+        if (isLossless() != other.isLossless()) return isLossless();
+        return getNominalBitrate() > other.getNominalBitrate();
+    }
+
+    /**
+     * Listed size, else scaled by bitrate from a sibling whose size is listed,
+     * else the nominal bitrate over a typical track length.
+     */
+    public long estimateSize(List<Rendition> siblings) {
+        if (size > 0) return size;
+        for (Rendition sibling : siblings) {
+            if (sibling.size > 0) {
+                return sibling.size * getNominalBitrate() / sibling.getNominalBitrate();
+            }
+        }
+        return getNominalBitrate() / 8L * ASSUMED_DURATION_SEC;
+    }
+
+    public static String formatOf(String name) {
+        int lastDot = name.lastIndexOf('.');
+        return lastDot > 0 ? name.substring(lastDot + 1).toUpperCase() : "";
+    }
+}
@@ -0,0 +1,164 @@
+package com.ford442.droidman;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Frame-offset index of a cached track. Point i starts exactly at sample
+ * i * samplesPerPoint, so mapping a seek time to a byte offset is a single
+ * division. Built by {@link SeekIndexBuilder} while the download streams in.
+ */
+public class SeekIndex {
+
+    private static final String TAG = "SeekIndex";
+    private static final int MAGIC = 0x444D5331; // "DMS1"
+    static final String SIDECAR_SUFFIX = ".idx";
+
+    private static final int FLAC_STREAMINFO_END = 42; // "fLaC" + block header + 34-byte STREAMINFO
+    private static final int FLAC_SEEKTABLE_TYPE = 3;
+    private static final int FLAC_SEEKPOINT_SIZE = 18;
+
+    private final int sampleRate;
+    private final int samplesPerFrame;
+    private final int samplesPerPoint;
+    private final long totalSamples;
+    private final long[] positions;
+
+    SeekIndex(int sampleRate, int samplesPerFrame, int samplesPerPoint, long totalSamples, long[] positions) {
+        this.sampleRate = sampleRate;
+        this.samplesPerFrame = samplesPerFrame;
+        this.samplesPerPoint = samplesPerPoint;
+        this.totalSamples = totalSamples;
+        this.positions = positions;
+    }
+
+    public int getPointCount() {
+        return positions.length;
+    }
+
+    public long getDurationUs() {
+        return totalSamples * 1000000L / sampleRate;
+    }
+
+    public long getTimeUs(int point) {
+        return (long) point * samplesPerPoint * 1000000L / sampleRate;
+    }
+
+    public long getPosition(int point) {
+        return positions[point];
+    }
+
+    // Last point at or before the given time
+    public int getPointForTimeUs(long timeUs) {
+        long sample = timeUs * sampleRate / 1000000L;
+        long point = sample / samplesPerPoint;
+        return (int) Math.max(0, Math.min(point, positions.length - 1));
+    }
+
+    // Point starting exactly at the given byte offset, or -1
+    public int getPointForPosition(long position) {
+        int point = Arrays.binarySearch(positions, position);
+        return point >= 0 ? point : -1;
+    }
+
+    public static File sidecarFor(File cacheFile) {
+        return new File(cacheFile.getPath() + SIDECAR_SUFFIX);
+    }
+
+    // Positions are delta-encoded as varints; frames are small, so most take 1-2 bytes
+    public void writeTo(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(sampleRate);
+            out.writeInt(samplesPerFrame);
+            out.writeInt(samplesPerPoint);
+            out.writeLong(totalSamples);
+            out.writeInt(positions.length);
+            long previous = 0;
+            for (long position : positions) {
+                writeVarLong(out, position - previous);
+                previous = position;
+            }
+        }
+    }
+
+    public static SeekIndex readFrom(File file) {
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) return null;
+            int sampleRate = in.readInt();
+            int samplesPerFrame = in.readInt();
+            int samplesPerPoint = in.readInt();
+            long totalSamples = in.readLong();
+            long[] positions = new long[in.readInt()];
+            long previous = 0;
+            for (int i = 0; i < positions.length; i++) {
+                previous += readVarLong(in);
+                positions[i] = previous;
+            }
+            return new SeekIndex(sampleRate, samplesPerFrame, samplesPerPoint, totalSamples, positions);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read seek index " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a FLAC stream with a SEEKTABLE block built from this index inserted right
+     * after STREAMINFO, so FlacExtractor seeks from the table instead of binary-searching.
+     * Seek point offsets are relative to the first frame and are unaffected by the insert.
+     */
+    public void writeFlacWithSeekTable(OutputStream out, byte[] flac) throws IOException {
+        boolean streamInfoWasLast = (flac[4] & 0x80) != 0;
+        long firstFrame = positions[0];
+        int tableLength = positions.length * FLAC_SEEKPOINT_SIZE;
+
+        out.write(flac, 0, 4);
+        out.write(flac[4] & 0x7F);
+        out.write(flac, 5, FLAC_STREAMINFO_END - 5);
+
+        DataOutputStream table = new DataOutputStream(new BufferedOutputStream(out));
+        table.writeByte((streamInfoWasLast ? 0x80 : 0) | FLAC_SEEKTABLE_TYPE);
+        table.writeByte(tableLength >> 16);
+        table.writeShort(tableLength & 0xFFFF);
+        for (int i = 0; i < positions.length; i++) {
+            long sample = (long) i * samplesPerPoint;
+            table.writeLong(sample);
+            table.writeLong(positions[i] - firstFrame);
+            table.writeShort((int) Math.min(samplesPerFrame, totalSamples - sample));
+        }
+        table.flush();
+
+        out.write(flac, FLAC_STREAMINFO_END, flac.length - FLAC_STREAMINFO_END);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
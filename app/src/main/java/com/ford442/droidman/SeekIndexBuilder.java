@@ -0,0 +1,360 @@
+package com.ford442.droidman;
+
+import java.util.Arrays;
+
+/**
+ * Builds a {@link SeekIndex} from a track's bytes as they are downloaded, one chunk at a time.
+ * MP3 frames are followed header to header; FLAC frames are found by their sync code,
+ * checked against the header CRC-8 and the expected frame number.
+ * Streams the builder cannot index precisely (free-format MP3, variable-blocksize FLAC,
+ * FLAC that already has a SEEKTABLE) produce no index.
+ */
+public abstract class SeekIndexBuilder {
+
+    // Points closer than this are thinned out; an exact seek decodes forward from the previous one
+    private static final long MIN_POINT_SPACING_US = 100000;
+
+    private byte[] carry = new byte[0];
+    private long carryOffset = 0;
+    private long pendingSkip = 0;
+    protected boolean failed = false;
+
+    private long[] positions = new long[256];
+    private int pointCount = 0;
+
+    public static SeekIndexBuilder forFormat(String format) {
+        switch (format) {
+            case "MP3": return new Mp3();
+            case "FLAC": return new Flac();
+            default: return null;
+        }
+    }
+
+    public void feed(byte[] data, int length) {
+        if (failed) return;
+        int start = 0;
+        if (pendingSkip > 0) {
+            int skipped = (int) Math.min(pendingSkip, length);
+            pendingSkip -= skipped;
+            carryOffset += skipped;
+            start = skipped;
+            if (start == length) return;
+        }
+
+        byte[] window = new byte[carry.length + length - start];
+        System.arraycopy(carry, 0, window, 0, carry.length);
+        System.arraycopy(data, start, window, carry.length, length - start);
+
+        // Scanners return early when they change state, so keep going until one makes no progress
+        while (!failed) {
+            int resume = scan(window, window.length, carryOffset);
+            if (resume >= window.length) {
+                pendingSkip = resume - window.length;
+                carryOffset += window.length;
+                window = new byte[0];
+                break;
+            }
+            if (resume == 0) break;
+            window = Arrays.copyOfRange(window, resume, window.length);
+            carryOffset += resume;
+        }
+        carry = window;
+    }
+
+    /** Returns the finished index, or null if the stream could not be indexed. */
+    public abstract SeekIndex build();
+
+    /**
+     * Parses as much of buf as possible. Returns the index to resume from; bytes after it are
+     * handed back with the next chunk, and a value past len skips that many bytes ahead.
+     */
+    protected abstract int scan(byte[] buf, int len, long bufOffset);
+
+    protected void addPoint(long position) {
+        if (pointCount == positions.length) positions = Arrays.copyOf(positions, pointCount * 2);
+        positions[pointCount++] = position;
+    }
+
+    protected SeekIndex buildIndex(int sampleRate, int samplesPerFrame, int framesPerPoint, long totalSamples) {
+        if (failed || pointCount == 0 || sampleRate <= 0) return null;
+        return new SeekIndex(sampleRate, samplesPerFrame, samplesPerFrame * framesPerPoint, totalSamples,
+                Arrays.copyOf(positions, pointCount));
+    }
+
+    protected static int framesPerPoint(int sampleRate, int samplesPerFrame) {
+        long samples = MIN_POINT_SPACING_US * sampleRate / 1000000L;
+        return (int) Math.max(1, (samples + samplesPerFrame - 1) / samplesPerFrame);
+    }
+
+    private static int readInt(byte[] buf, int i) {
+        return (buf[i] & 0xFF) << 24 | (buf[i + 1] & 0xFF) << 16 | (buf[i + 2] & 0xFF) << 8 | (buf[i + 3] & 0xFF);
+    }
+
+    static class Mp3 extends SeekIndexBuilder {
+        private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+        private static final int[] BITRATES_V1_L1 = {32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448};
+        private static final int[] BITRATES_V1_L2 = {32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384};
+        private static final int[] BITRATES_V1_L3 = {32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+        private static final int[] BITRATES_V2_L1 = {32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256};
+        private static final int[] BITRATES_V2_L23 = {8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+        // Version, layer and sample rate bits must match across all frames of a stream
+        private static final int CONSTANT_HEADER_MASK = 0xFFFE0C00;
+        private static final int INFO_CHECK_LENGTH = 40;
+
+        private boolean id3Checked = false;
+        private boolean infoChecked = false;
+        private int constantHeader = 0;
+        private int sampleRate;
+        private int samplesPerFrame;
+        private int framesPerPoint;
+        private long frameCount = 0;
+
+        @Override
+        protected int scan(byte[] buf, int len, long bufOffset) {
+            int i = 0;
+            if (!id3Checked) {
+                if (len < 10) return 0;
+                id3Checked = true;
+                if (buf[0] == 'I' && buf[1] == 'D' && buf[2] == '3') {
+                    int size = (buf[6] & 0x7F) << 21 | (buf[7] & 0x7F) << 14 | (buf[8] & 0x7F) << 7 | (buf[9] & 0x7F);
+                    boolean footer = (buf[5] & 0x10) != 0;
+                    return 10 + size + (footer ? 10 : 0);
+                }
+            }
+
+            while (i + 4 <= len) {
+                int header = readInt(buf, i);
+                int frameSize = frameSize(header);
+                if (frameSize <= 0 || (constantHeader != 0 && (header & CONSTANT_HEADER_MASK) != constantHeader)) {
+                    // Not a frame: junk before the first frame or trailing tags, move on byte by byte
+                    i++;
+                    continue;
+                }
+
+                if (constantHeader == 0) {
+                    // Lock onto the stream only where the following header agrees
+                    if (i + Math.max(frameSize + 4, INFO_CHECK_LENGTH) > len) break;
+                    int next = readInt(buf, i + frameSize);
+                    if (frameSize(next) <= 0 || (next & CONSTANT_HEADER_MASK) != (header & CONSTANT_HEADER_MASK)) {
+                        i++;
+                        continue;
+                    }
+                    constantHeader = header & CONSTANT_HEADER_MASK;
+                    sampleRate = sampleRate(header);
+                    samplesPerFrame = samplesPerFrame(header);
+                    framesPerPoint = framesPerPoint(sampleRate, samplesPerFrame);
+                }
+                if (!infoChecked) {
+                    if (i + INFO_CHECK_LENGTH > len) break;
+                    infoChecked = true;
+                    // Mp3Extractor consumes a Xing/Info/VBRI frame as metadata, not audio
+                    if (isInfoFrame(buf, i, header)) {
+                        i += frameSize;
+                        continue;
+                    }
+                }
+
+                if (frameCount % framesPerPoint == 0) addPoint(bufOffset + i);
+                frameCount++;
+                i += frameSize;
+            }
+            return i;
+        }
+
+        @Override
+        public SeekIndex build() {
+            return buildIndex(sampleRate, samplesPerFrame, framesPerPoint, frameCount * samplesPerFrame);
+        }
+
+        private static int version(int header) {
+            return (header >>> 19) & 3; // 0 = 2.5, 1 = reserved, 2 = 2, 3 = 1
+        }
+
+        private static int layer(int header) {
+            return 4 - ((header >>> 17) & 3); // 1, 2 or 3; 4 = reserved
+        }
+
+        private static int sampleRate(int header) {
+            int rate = SAMPLE_RATES[(header >>> 10) & 3];
+            int version = version(header);
+            return version == 3 ? rate : version == 2 ? rate / 2 : rate / 4;
+        }
+
+        private static int samplesPerFrame(int header) {
+            int layer = layer(header);
+            if (layer == 1) return 384;
+            return layer == 3 && version(header) != 3 ? 576 : 1152;
+        }
+
+        // Returns -1 for anything that is not a valid fixed-bitrate frame header
+        static int frameSize(int header) {
+            if ((header & 0xFFE00000) != 0xFFE00000) return -1;
+            int version = version(header);
+            int layer = layer(header);
+            int bitrateIndex = (header >>> 12) & 15;
+            int sampleRateIndex = (header >>> 10) & 3;
+            if (version == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) return -1;
+
+            int[] table;
+            if (version == 3) {
+                table = layer == 1 ? BITRATES_V1_L1 : layer == 2 ? BITRATES_V1_L2 : BITRATES_V1_L3;
+            } else {
+                table = layer == 1 ? BITRATES_V2_L1 : BITRATES_V2_L23;
+            }
+            int bitrate = table[bitrateIndex - 1] * 1000;
+            int sampleRate = sampleRate(header);
+            int padding = (header >>> 9) & 1;
+
+            if (layer == 1) return (12 * bitrate / sampleRate + padding) * 4;
+            if (layer == 3 && version != 3) return 72 * bitrate / sampleRate + padding;
+            return 144 * bitrate / sampleRate + padding;
+        }
+
+        private static boolean isInfoFrame(byte[] buf, int frame, int header) {
+            boolean mono = ((header >>> 6) & 3) == 3;
+            int xingOffset = version(header) == 3 ? (mono ? 21 : 36) : (mono ? 13 : 21);
+            return matches(buf, frame + xingOffset, "Xing") || matches(buf, frame + xingOffset, "Info")
+                    || matches(buf, frame + 36, "VBRI");
+        }
+
+        private static boolean matches(byte[] buf, int i, String tag) {
+            for (int j = 0; j < 4; j++) {
+                if (buf[i + j] != tag.charAt(j)) return false;
+            }
+            return true;
+        }
+    }
+
+    static class Flac extends SeekIndexBuilder {
+        private static final int MAX_FRAME_HEADER = 16;
+
+        private boolean metadataDone = false;
+        private int sampleRate;
+        private int blockSize;
+        private long totalSamples;
+        private int framesPerPoint;
+        private long frameCount = 0;
+        private long lastFrameSamples = 0;
+
+        @Override
+        protected int scan(byte[] buf, int len, long bufOffset) {
+            int i = 0;
+            if (!metadataDone) {
+                if (bufOffset == 0) {
+                    if (len < 4) return 0;
+                    if (buf[0] != 'f' || buf[1] != 'L' || buf[2] != 'a' || buf[3] != 'C') {
+                        failed = true;
+                        return len;
+                    }
+                    i = 4;
+                }
+                // Metadata blocks, one at a time
+                while (true) {
+                    if (i + 4 > len) return i;
+                    boolean last = (buf[i] & 0x80) != 0;
+                    int type = buf[i] & 0x7F;
+                    int length = (buf[i + 1] & 0xFF) << 16 | (buf[i + 2] & 0xFF) << 8 | (buf[i + 3] & 0xFF);
+                    if (type == 0) {
+                        if (i + 4 + 18 > len) return i;
+                        readStreamInfo(buf, i + 4);
+                    } else if (type == 3) {
+                        // Already has a SEEKTABLE, which FlacExtractor uses directly
+                        failed = true;
+                        return len;
+                    }
+                    i += 4 + length;
+                    if (last) {
+                        metadataDone = true;
+                        if (failed) return len;
+                        return i;
+                    }
+                    if (i > len) return i;
+                }
+            }
+
+            while (i + MAX_FRAME_HEADER <= len) {
+                if ((buf[i] & 0xFF) == 0xFF && (buf[i + 1] & 0xFF) == 0xF8) {
+                    int frameSamples = readFrameHeader(buf, i);
+                    if (frameSamples > 0) {
+                        if (frameCount % framesPerPoint == 0) addPoint(bufOffset + i);
+                        frameCount++;
+                        lastFrameSamples = frameSamples;
+                        i += 2;
+                        continue;
+                    }
+                }
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public SeekIndex build() {
+            long samples = totalSamples > 0 ? totalSamples : (frameCount - 1) * blockSize + lastFrameSamples;
+            return buildIndex(sampleRate, blockSize, framesPerPoint, samples);
+        }
+
+        private void readStreamInfo(byte[] buf, int i) {
+            int minBlockSize = (buf[i] & 0xFF) << 8 | (buf[i + 1] & 0xFF);
+            int maxBlockSize = (buf[i + 2] & 0xFF) << 8 | (buf[i + 3] & 0xFF);
+            sampleRate = (buf[i + 10] & 0xFF) << 12 | (buf[i + 11] & 0xFF) << 4 | (buf[i + 12] & 0xF0) >> 4;
+            totalSamples = (long) (buf[i + 13] & 0x0F) << 32 | (long) readInt(buf, i + 14) & 0xFFFFFFFFL;
+            // Only fixed-blocksize streams have evenly spaced frames
+            if (minBlockSize != maxBlockSize || sampleRate == 0) {
+                failed = true;
+                return;
+            }
+            blockSize = maxBlockSize;
+            framesPerPoint = framesPerPoint(sampleRate, blockSize);
+        }
+
+        // Returns the frame's sample count if this is the header of the next expected frame, else -1
+        private int readFrameHeader(byte[] buf, int start) {
+            int blockSizeCode = (buf[start + 2] & 0xF0) >> 4;
+            int sampleRateCode = buf[start + 2] & 0x0F;
+            if (blockSizeCode == 0 || sampleRateCode == 15 || (buf[start + 3] & 1) != 0) return -1;
+
+            int i = start + 4;
+            int first = buf[i++] & 0xFF;
+            int extraBytes;
+            long frameNumber;
+            if ((first & 0x80) == 0) { extraBytes = 0; frameNumber = first; }
+            else if ((first & 0xE0) == 0xC0) { extraBytes = 1; frameNumber = first & 0x1F; }
+            else if ((first & 0xF0) == 0xE0) { extraBytes = 2; frameNumber = first & 0x0F; }
+            else if ((first & 0xF8) == 0xF0) { extraBytes = 3; frameNumber = first & 0x07; }
+            else if ((first & 0xFC) == 0xF8) { extraBytes = 4; frameNumber = first & 0x03; }
+            else if ((first & 0xFE) == 0xFC) { extraBytes = 5; frameNumber = first & 0x01; }
+            else return -1;
+            for (int j = 0; j < extraBytes; j++) {
+                int b = buf[i++] & 0xFF;
+                if ((b & 0xC0) != 0x80) return -1;
+                frameNumber = frameNumber << 6 | (b & 0x3F);
+            }
+            // Sequential frame numbers rule out sync codes that appear inside audio data
+            if (frameNumber != frameCount) return -1;
+
+            int samples;
+            if (blockSizeCode == 1) samples = 192;
+            else if (blockSizeCode <= 5) samples = 576 << (blockSizeCode - 2);
+            else if (blockSizeCode == 6) samples = (buf[i++] & 0xFF) + 1;
+            else if (blockSizeCode == 7) { samples = ((buf[i] & 0xFF) << 8 | (buf[i + 1] & 0xFF)) + 1; i += 2; }
+            else samples = 256 << (blockSizeCode - 8);
+
+            if (sampleRateCode == 12) i += 1;
+            else if (sampleRateCode == 13 || sampleRateCode == 14) i += 2;
+
+            return crc8(buf, start, i) == (buf[i] & 0xFF) ? samples : -1;
+        }
+
+        private static int crc8(byte[] buf, int from, int to) {
+            int crc = 0;
+            for (int i = from; i < to; i++) {
+                crc ^= buf[i] & 0xFF;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+                }
+            }
+            return crc;
+        }
+    }
+}
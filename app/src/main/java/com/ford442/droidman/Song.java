@@ -3,6 +3,9 @@ package com.ford442.droidman;
 import android.net.Uri;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class Song {
     private File file;
@@ -11,9 +14,12 @@ public class Song {
     private String artist;
     private String format;
     private String path;
-    private byte[] cachedData; // Store song data in RAM for offline playback
+    private byte[] cachedData; // Downloaded bytes, held in RAM until they are spilled to a temp file
+    private SeekIndex seekIndex; // Frame offsets of the cached data, if it could be indexed
+    private volatile List<Rendition> renditions = Collections.emptyList(); // Encodings the catalog offers; replaced, never edited
+    private Rendition cachedRendition; // Encoding of the cached copy (null means the song's own format)
 
-    // Constructor for File-based songs (legacy)
+    // Constructor for File-based songs (local library scan)
     public Song(File file) {
         this.file = file;
         this.uri = null;
@@ -31,6 +37,7 @@ public class Song {
         this.format = getFileExtension(displayName);
         this.artist = "Unknown Artist";
         this.path = uri.toString();
+        this.renditions = Collections.singletonList(new Rendition(uri, format, 0, 0));
     }
 
     public File getFile() {
@@ -69,6 +76,12 @@ public class Song {
         return path;
     }
 
+    public static boolean isSupportedAudioFile(String name) {
+        String lowerName = name.toLowerCase();
+        return lowerName.endsWith(".mp3") || lowerName.endsWith(".flac") || lowerName.endsWith(".wav")
+                || lowerName.endsWith(".opus");
+    }
+
     private String getFileExtension(String name) {
         int lastDot = name.lastIndexOf('.');
         if (lastDot > 0) {
@@ -85,11 +98,42 @@ public class Song {
         this.cachedData = cachedData;
     }
 
+    public SeekIndex getSeekIndex() {
+        return seekIndex;
+    }
+
+    public void setSeekIndex(SeekIndex seekIndex) {
+        this.seekIndex = seekIndex;
+    }
+
+    public List<Rendition> getRenditions() {
+        return renditions;
+    }
+
+    public void setRenditions(List<Rendition> renditions) {
+        this.renditions = new ArrayList<>(renditions);
+    }
+
+    public Rendition getCachedRendition() {
+        return cachedRendition;
+    }
+
+    public void setCachedRendition(Rendition cachedRendition) {
+        this.cachedRendition = cachedRendition;
+    }
+
+    // Format of the cached bytes, which may be a smaller sibling of the song's own
+    public String getCachedFormat() {
+        return cachedRendition != null ? cachedRendition.getFormat() : format;
+    }
+
     public boolean isCached() {
         return cachedData != null;
     }
 
     public void clearCache() {
         cachedData = null;
+        seekIndex = null;
+        cachedRendition = null;
     }
 }
@@ -1,31 +1,55 @@
 package com.ford442.droidman;
 
+import android.content.res.ColorStateList;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.cardview.widget.CardView;
+import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class SongAdapter extends RecyclerView.Adapter<SongAdapter.SongViewHolder> {
     
     private List<Song> songs = new ArrayList<>();
     private OnSongClickListener listener;
+    private OnSelectionChangedListener selectionListener;
+    private final Set<Song> selectedSongs = new HashSet<>();
+    private boolean selectionEnabled = false;
 
     public interface OnSongClickListener {
         void onSongClick(Song song, int position);
     }
 
+    public interface OnSelectionChangedListener {
+        void onSelectionChanged(int selectedCount);
+    }
+
     public SongAdapter(OnSongClickListener listener) {
         this.listener = listener;
     }
 
+    // The list is replaced as catalogs and scans arrive and as the filter changes, so the
+    // selection is kept for songs that are still listed (matched by path, since rescans
+    // create new Song objects)
     public void setSongs(List<Song> songs) {
         this.songs = songs;
+        if (!selectedSongs.isEmpty()) {
+            Set<String> selectedPaths = new HashSet<>();
+            for (Song song : selectedSongs) selectedPaths.add(song.getPath());
+            selectedSongs.clear();
+            for (Song song : songs) {
+                if (selectedPaths.contains(song.getPath())) selectedSongs.add(song);
+            }
+            notifySelectionChanged();
+        }
         notifyDataSetChanged();
     }
 
@@ -33,6 +57,42 @@ public class SongAdapter extends RecyclerView.Adapter<SongAdapter.SongViewHolder
         return songs;
     }
 
+    public void setOnSelectionChangedListener(OnSelectionChangedListener listener) {
+        this.selectionListener = listener;
+    }
+
+    // Long-press selection is only offered where a bulk action exists
+    public void setSelectionEnabled(boolean enabled) {
+        this.selectionEnabled = enabled;
+        if (!enabled && !selectedSongs.isEmpty()) clearSelection();
+    }
+
+    // Selected songs in list order
+    public List<Song> getSelectedSongs() {
+        List<Song> result = new ArrayList<>();
+        for (Song song : songs) {
+            if (selectedSongs.contains(song)) result.add(song);
+        }
+        return result;
+    }
+
+    public void clearSelection() {
+        selectedSongs.clear();
+        notifyDataSetChanged();
+        notifySelectionChanged();
+    }
+
+    private void toggleSelection(int position) {
+        Song song = songs.get(position);
+        if (!selectedSongs.remove(song)) selectedSongs.add(song);
+        notifyItemChanged(position);
+        notifySelectionChanged();
+    }
+
+    private void notifySelectionChanged() {
+        if (selectionListener != null) selectionListener.onSelectionChanged(selectedSongs.size());
+    }
+
     @NonNull
     @Override
     public SongViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -56,25 +116,43 @@ public class SongAdapter extends RecyclerView.Adapter<SongAdapter.SongViewHolder
         TextView tvFileName;
         TextView tvFilePath;
         TextView tvFileFormat;
+        ColorStateList defaultBackground;
 
         SongViewHolder(@NonNull View itemView) {
             super(itemView);
             tvFileName = itemView.findViewById(R.id.tvFileName);
             tvFilePath = itemView.findViewById(R.id.tvFilePath);
             tvFileFormat = itemView.findViewById(R.id.tvFileFormat);
+            defaultBackground = ((CardView) itemView).getCardBackgroundColor();
 
             itemView.setOnClickListener(v -> {
                 int position = getAdapterPosition();
-                if (position != RecyclerView.NO_POSITION && listener != null) {
+                if (position == RecyclerView.NO_POSITION) return;
+                // While a selection is active, taps extend it instead of acting on the song
+                if (!selectedSongs.isEmpty()) {
+                    toggleSelection(position);
+                } else if (listener != null) {
                     listener.onSongClick(songs.get(position), position);
                 }
             });
+
+            itemView.setOnLongClickListener(v -> {
+                int position = getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION || !selectionEnabled) return false;
+                toggleSelection(position);
+                return true;
+            });
         }
 
         void bind(Song song) {
             tvFileName.setText(song.getTitle());
             tvFilePath.setText(song.getPath());
             tvFileFormat.setText(song.getFormat());
+            if (selectedSongs.contains(song)) {
+                ((CardView) itemView).setCardBackgroundColor(ContextCompat.getColor(itemView.getContext(), R.color.selected_item));
+            } else {
+                ((CardView) itemView).setCardBackgroundColor(defaultBackground);
+            }
         }
     }
 }
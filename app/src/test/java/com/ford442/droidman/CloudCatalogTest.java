@@ -0,0 +1,158 @@
+package com.ford442.droidman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Fetches listings with several renditions per song from local stand-in mirrors and
+ * checks how they are grouped, merged across mirrors, sized and picked. Runs under Robolectric for android.net.Uri.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CloudCatalogTest {
+
+    private static final long MB = 1024 * 1024;
+    private static final long FLAC_SIZE = 33000000;
+
+    private static final String LISTING = "{\"files\": ["
+            + "{\"filename\": \"Song.flac\", \"size\": " + FLAC_SIZE + "},"
+            + "{\"filename\": \"song.mp3\", \"bitrate\": 320},"
+            + "{\"filename\": \"cover.jpg\"},"
+            + "{\"filename\": \"other.opus\"},"
+            + "{\"filename\": \"live.flac\", \"renditions\": ["
+            + "  {\"url\": \"live.opus\", \"bitrate\": 128},"
+            + "  {\"url\": \"http://cdn.example/live.mp3\", \"format\": \"mp3\"}]}"
+            + "]}";
+
+    private final List<HttpServer> servers = new ArrayList<>();
+    private String baseUrl;
+    private MirrorPool mirrorPool;
+
+    @Before
+    public void startServer() throws IOException {
+        baseUrl = startMirror(LISTING);
+        mirrorPool = new MirrorPool(Collections.singletonList(baseUrl));
+    }
+
+    @After
+    public void stopServers() {
+        for (HttpServer server : servers) server.stop(0);
+    }
+
+    @Test
+    public void groupsFilesWithTheSameStemIntoOneSong() throws Exception {
+        List<Song> songs = fetch();
+
+        assertEquals(3, songs.size());
+        Song song = songs.get(0);
+        assertEquals("Song.flac", song.getTitle());
+        assertEquals(baseUrl + "/file=Song.flac", song.getUri().toString());
+        assertEquals(2, song.getRenditions().size());
+        assertEquals("MP3", song.getRenditions().get(1).getFormat());
+        assertEquals(320000, song.getRenditions().get(1).getBitrate());
+        assertTrue(song.getRenditions().get(1).getMirrors().contains(baseUrl));
+        assertEquals("other.opus", songs.get(1).getTitle());
+    }
+
+    @Test
+    public void readsInlineRenditions() throws Exception {
+        List<Rendition> renditions = fetch().get(2).getRenditions();
+
+        assertEquals(3, renditions.size());
+        assertEquals(baseUrl + "/file=live.opus", renditions.get(1).getUri().toString());
+        assertEquals("OPUS", renditions.get(1).getFormat());
+        assertEquals(128000, renditions.get(1).getBitrate());
+        assertEquals("http://cdn.example/live.mp3", renditions.get(2).getUri().toString());
+        assertEquals("MP3", renditions.get(2).getFormat());
+    }
+
+    @Test
+    public void estimatesMissingSizesFromSiblings() throws Exception {
+        List<Song> songs = fetch();
+        List<Rendition> song = songs.get(0).getRenditions();
+        List<Rendition> other = songs.get(1).getRenditions();
+
+        assertEquals(FLAC_SIZE, song.get(0).estimateSize(song));
+        // Scaled from the FLAC by bitrate: 33 MB * 320 / 1100 kbps
+        assertEquals(FLAC_SIZE * 320000 / 1100000, song.get(1).estimateSize(song));
+        // No sibling with a size: 128 kbps over four minutes
+        assertEquals(128000 / 8 * 240, other.get(0).estimateSize(other));
+    }
+
+    @Test
+    public void downgradesUnderPressureAndUpgradesOnceItFits() throws Exception {
+        List<Rendition> renditions = fetch().get(0).getRenditions();
+        Rendition flac = renditions.get(0);
+        Rendition mp3 = renditions.get(1);
+        QualitySelector selector = new QualitySelector();
+
+        assertSame(flac, selector.choose(renditions, 0, 1024 * MB, 0));
+        // 12 MB left in the cache budget
+        assertSame(mp3, selector.choose(renditions, 500 * MB, 1024 * MB, 0));
+        // 200 KB/s link: at most 18 MB within the fetch time limit
+        assertSame(mp3, selector.choose(renditions, 0, 1024 * MB, 200 * 1000));
+        // Even the MP3 is over the 2 MB left, so the song only streams
+        assertNull(selector.choose(renditions, 510 * MB, 1024 * MB, 0));
+
+        // Once the cache has room again the FLAC is chosen and replaces the cached MP3
+        Rendition target = selector.choose(renditions, 0, 1024 * MB, 0);
+        assertSame(flac, target);
+        assertTrue(target.isBetterThan(mp3));
+    }
+
+    @Test
+    public void mergesTheSameSongFromSeveralMirrors() throws Exception {
+        String full = startMirror("{\"files\": [{\"filename\": \"song.flac\"}, {\"filename\": \"song.mp3\"}]}");
+        String partial = startMirror("{\"files\": [{\"filename\": \"song.mp3\"}, {\"filename\": \"Song.opus\"}]}");
+        MirrorPool pool = new MirrorPool(Arrays.asList(full, partial));
+        CloudCatalog catalog = new CloudCatalog(pool);
+
+        assertTrue(catalog.merge(catalog.fetch(pool.getMirrors().get(0))));
+        assertFalse(catalog.merge(catalog.fetch(pool.getMirrors().get(1))));
+
+        assertEquals(1, catalog.getSongs().size());
+        List<Rendition> renditions = catalog.getSongs().get(0).getRenditions();
+        assertEquals(3, renditions.size());
+        assertEquals(Collections.singleton(full), renditions.get(0).getMirrors());
+        assertEquals(new HashSet<>(Arrays.asList(full, partial)), renditions.get(1).getMirrors());
+        assertEquals("OPUS", renditions.get(2).getFormat());
+        assertEquals(Collections.singleton(partial), renditions.get(2).getMirrors());
+    }
+
+    private List<Song> fetch() throws Exception {
+        return new CloudCatalog(mirrorPool).fetch(mirrorPool.getMirrors().get(0));
+    }
+
+    private String startMirror(String listing) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/storage/files", exchange -> {
+            byte[] body = listing.getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+}
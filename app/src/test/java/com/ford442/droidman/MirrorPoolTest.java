@@ -0,0 +1,143 @@
+package com.ford442.droidman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs MirrorPool against local stand-in servers: one fast, one slow to answer
+ * and one that always fails.
+ */
+public class MirrorPoolTest {
+
+    private static final long SLOW_DELAY_MS = 5000;
+
+    private final List<HttpServer> servers = new ArrayList<>();
+    private String fast;
+    private String slow;
+    private String failing;
+
+    @Before
+    public void startServers() throws IOException {
+        fast = startServer(0, 200);
+        slow = startServer(SLOW_DELAY_MS, 200);
+        failing = startServer(0, 500);
+    }
+
+    @After
+    public void stopServers() {
+        for (HttpServer server : servers) server.stop(0);
+    }
+
+    @Test
+    public void ranksMeasuredMirrorsByLatency() throws IOException {
+        String slowish = startServer(300, 200);
+        MirrorPool pool = new MirrorPool(Arrays.asList(slowish, fast));
+        for (MirrorPool.Mirror mirror : pool.getMirrors()) {
+            pool.open(mirror, "/api", 10000).connection.disconnect();
+        }
+
+        assertEquals(fast, pool.ranked().get(0).getBaseUrl());
+        assertEquals(fast + "/file=song.mp3", pool.bestUrl(slowish + "/file=song.mp3", Collections.<String>emptySet()));
+    }
+
+    @Test
+    public void benchesMirrorAfterRepeatedFailures() {
+        MirrorPool pool = new MirrorPool(Arrays.asList(failing, fast));
+        MirrorPool.Mirror bad = pool.getMirrors().get(0);
+        for (int i = 0; i < 3; i++) {
+            try {
+                pool.open(bad, "/api", 10000);
+            } catch (IOException expected) {
+                // HTTP 500
+            }
+        }
+
+        assertFalse(bad.isHealthy());
+        assertEquals(fast, pool.ranked().get(0).getBaseUrl());
+        assertEquals(failing, pool.ranked().get(1).getBaseUrl());
+    }
+
+    @Test
+    public void hedgesSlowMirrorOnTheNextOne() throws IOException {
+        MirrorPool pool = new MirrorPool(Arrays.asList(slow, fast));
+        long start = System.currentTimeMillis();
+        MirrorPool.Response response = pool.openHedged(slow + "/file=song.mp3", Collections.<String>emptySet(), 10000);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(fast + "/file=song.mp3", response.connection.getURL().toString());
+        assertTrue("took " + elapsed + " ms", elapsed < SLOW_DELAY_MS);
+        response.connection.disconnect();
+    }
+
+    @Test
+    public void failsOverFromFailingMirror() throws IOException {
+        MirrorPool pool = new MirrorPool(Arrays.asList(failing, fast));
+        MirrorPool.Response response = pool.openHedged(failing + "/file=song.mp3", Collections.<String>emptySet(), 10000);
+
+        assertEquals(fast + "/file=song.mp3", response.connection.getURL().toString());
+        response.connection.disconnect();
+    }
+
+    @Test
+    public void routesOnlyToMirrorsThatListedTheFile() throws IOException {
+        String holder = startServer(0, 200);
+        MirrorPool pool = new MirrorPool(Arrays.asList(fast, holder));
+        MirrorPool.Response response = pool.openHedged(fast + "/file=song.mp3", Collections.singleton(holder), 10000);
+
+        assertEquals(holder + "/file=song.mp3", response.connection.getURL().toString());
+        assertEquals(holder + "/file=song.mp3", pool.bestUrl(fast + "/file=song.mp3", Collections.singleton(holder)));
+        response.connection.disconnect();
+    }
+
+    @Test
+    public void missingFileDoesNotBenchMirror() throws IOException {
+        String missing = startServer(0, 404);
+        MirrorPool pool = new MirrorPool(Arrays.asList(missing, fast));
+        MirrorPool.Mirror lacking = pool.getMirrors().get(0);
+        for (int i = 0; i < 3; i++) {
+            try {
+                pool.open(lacking, "/file=song.mp3", 10000);
+            } catch (IOException expected) {
+                // HTTP 404
+            }
+        }
+
+        assertTrue(lacking.isHealthy());
+    }
+
+    private String startServer(long delayMs, int status) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "ok".getBytes();
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+}